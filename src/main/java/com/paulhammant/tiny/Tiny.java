@@ -33,17 +33,44 @@ import com.sun.net.httpserver.HttpServer;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.*;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class Tiny {
 
@@ -67,7 +94,12 @@ public class Tiny {
 
     public interface WebServerContext {
         PathContext path(String basePath, Runnable runnable);
+        WebServerContext host(String hostName, Runnable runnable);
         WebServerContext endPoint(HttpMethods method, String path, EndPoint endPoint);
+        WebServerContext endPoints(HttpMethods method, Map<String, EndPoint> pathsToEndPoints);
+        default WebServerContext endPoint(HttpMethods method, String path, long maxBodySize, EndPoint endPoint) {
+            return endPoint(method, path, new BodyLimitedEndPoint(maxBodySize, endPoint));
+        }
         WebServerContext webSocket(String path, WebSocketMessageHandler wsHandler);
         WebServerContext filter(HttpMethods method, String path, Filter filter);
         WebServerContext filter(String path, Filter filter);
@@ -90,6 +122,15 @@ public class Tiny {
 
     public interface RequestContext {
         String getParam(String key);
+
+        default long getLongParam(String key) {
+            return Long.parseLong(getParam(key));
+        }
+
+        default int getIntParam(String key) {
+            return Integer.parseInt(getParam(key));
+        }
+
         @SuppressWarnings("unchecked")
         <T> T dep(Class<T> clazz);
 
@@ -103,6 +144,22 @@ public class Tiny {
         void handle(Request request, Response response, RequestContext ctx);
     }
 
+    // An EndPoint with its own limit on request body size, in place of Config's maxRequestBodySize
+    public record BodyLimitedEndPoint(long maxBodySize, EndPoint endPoint) implements EndPoint {
+        @Override
+        public void handle(Request request, Response response, RequestContext ctx) {
+            endPoint.handle(request, response, ctx);
+        }
+    }
+
+    // An EndPoint whose responses are never compressed, for small ones where latency matters more than bytes
+    public record UncompressedEndPoint(EndPoint endPoint) implements EndPoint {
+        @Override
+        public void handle(Request request, Response response, RequestContext ctx) {
+            endPoint.handle(request, response, ctx);
+        }
+    }
+
     @FunctionalInterface
     public interface Filter {
         FilterAction filter(Request request, Response response, RequestContext ctx);
@@ -125,6 +182,18 @@ public class Tiny {
      */
     public static class ServerState {
         private boolean hasStarted;
+        private final Config config;
+        private ExecutorService staticFileExecutor;
+        private final List<Closeable> closeOnStop = new ArrayList<>();
+
+        public ServerState() {
+            this(Config.create());
+        }
+
+        public ServerState(Config config) {
+            this.config = config;
+        }
+
         public boolean hasStarted() {
             return hasStarted;
         }
@@ -132,6 +201,32 @@ public class Tiny {
         public void start() {
             hasStarted = true;
         }
+
+        // Static files are read and sent on a fixed number of threads of their own, so a burst of big downloads
+        // queues there rather than taking over the common ForkJoinPool
+        synchronized ExecutorService staticFileExecutor() {
+            if (staticFileExecutor == null) {
+                staticFileExecutor = Executors.newFixedThreadPool(config.staticFileThreads, Thread.ofPlatform().daemon().name("tiny-static-", 0).factory());
+            }
+            return staticFileExecutor;
+        }
+
+        synchronized void closeOnStop(Closeable closeable) {
+            closeOnStop.add(closeable);
+        }
+
+        synchronized void stop() {
+            if (staticFileExecutor != null) {
+                staticFileExecutor.shutdown();
+            }
+            for (Closeable closeable : closeOnStop) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    // stopping anyway
+                }
+            }
+        }
     }
 
     public static class DependencyManager {
@@ -157,101 +252,71 @@ public class Tiny {
 
     public static abstract class AbstractWebServerContext implements WebServerContext {
 
-        protected Map<HttpMethods, Map<Pattern, EndPoint>> endPoints = new HashMap<>();
-        protected Map<Pattern, WebSocketMessageHandler> wsEndPoints = new HashMap<>();
-        protected Map<HttpMethods, List<FilterEntry>> filters = new HashMap<>() {{ put(HttpMethods.ALL, new ArrayList<>()); }};
+        protected Registrations registrations = new Registrations();
+        protected final Map<String, Registrations> hosts = new HashMap<>();
         protected final ServerState serverState;
+        private boolean inHost;
+        private int pathDepth;
 
         public AbstractWebServerContext(ServerState serverState) {
             this.serverState = serverState;
         }
 
         public PathContext path(String basePath, Runnable runnable) {
-            // Save current endpoints and filters
             if (serverState.hasStarted()) {
                 throw new IllegalStateException("Cannot add paths after the server has started.");
             }
+            String baseRegex = Router.expandPathParams(basePath);
             // Check if the path is already registered
-            for (HttpMethods method : HttpMethods.values()) {
-                Map<Pattern, EndPoint> methodEndPoints = this.endPoints.get(method);
-                if (methodEndPoints != null) {
-                    for (Pattern pattern : methodEndPoints.keySet()) {
-                        if (pattern.pattern().startsWith("^" + basePath + "/")) {
-                            throw new IllegalStateException("Path already registered: " + basePath);
-                        }
-                    }
-                }
+            if (registrations.hasPathPrefix("^" + baseRegex)) {
+                throw new IllegalStateException("Path already registered: " + basePath);
             }
 
-            Map<HttpMethods, Map<Pattern, EndPoint>> previousEndPoints = this.endPoints;
-            Map<Pattern, WebSocketMessageHandler> previousWsEndPoints = this.wsEndPoints;
-            Map<HttpMethods, List<FilterEntry>> previousFilters = this.filters;
-
-            // Create new maps to collect endpoints and filters within this path
-            this.endPoints = new HashMap<>();
-            this.wsEndPoints = new HashMap<>();
-            this.filters = new HashMap<>();
-
-            // Initialize empty maps for all methods
-            for (HttpMethods method : HttpMethods.values()) {
-                this.endPoints.put(method, new HashMap<>());
-                this.filters.put(method, new ArrayList<>());
+            // Collect endpoints, filters and webSockets within this path separately, then prefix basePath to them
+            Registrations previous = this.registrations;
+            Registrations inPath = new Registrations();
+            this.registrations = inPath;
+            pathDepth++;
+            try {
+                runnable.run();
+            } finally {
+                pathDepth--;
+                this.registrations = previous;
             }
+            previous.addAll(baseRegex, inPath);
+            return new PathContext(serverState);
+        }
 
-
-            // Run the Runnable, which will populate this.endpoints and this.filters
-            runnable.run();
-
-            // Prefix basePath to endpoints
-            for (HttpMethods method : HttpMethods.values()) {
-                Map<Pattern, EndPoint> methodEndPoints = this.endPoints.get(method);
-                if (methodEndPoints != null && !methodEndPoints.isEmpty()) {
-                    Map<Pattern, EndPoint> prefixedEndPoints = new HashMap<>();
-                    for (Map.Entry<Pattern, EndPoint> entry : methodEndPoints.entrySet()) {
-                        Pattern pattern = entry.getKey();
-                        EndPoint endPoint = entry.getValue();
-                        Pattern newPattern = Pattern.compile("^" + basePath + pattern.pattern().substring(1));
-                        prefixedEndPoints.put(newPattern, endPoint);
-                    }
-                    previousEndPoints.get(method).putAll(prefixedEndPoints);
-                }
-
+        /**
+         * EndPoints and filters registered in the runnable only serve requests whose Host header is hostName.
+         * Each host gets its own route and filter tables, found by a HashMap lookup before any route matching.
+         * Requests for hosts that were not registered use the endPoints and filters outside of any host(..).
+         */
+        public WebServerContext host(String hostName, Runnable runnable) {
+            if (serverState.hasStarted()) {
+                throw new IllegalStateException("Cannot add hosts after the server has started.");
             }
-
-            // Prefix basePath to WebSocket handlers
-            for (Map.Entry<Pattern, WebSocketMessageHandler> entry : this.wsEndPoints.entrySet()) {
-                Pattern pattern = entry.getKey();
-                WebSocketMessageHandler wsHandler = entry.getValue();
-                Pattern newPattern = Pattern.compile("^" + basePath + pattern.pattern().substring(1));
-                previousWsEndPoints.put(newPattern, wsHandler);
+            if (inHost || pathDepth > 0) {
+                throw new IllegalStateException("Hosts can only be registered at the top level: " + hostName);
             }
-
-            // Prefix basePath to filters
-            for (HttpMethods method : HttpMethods.values()) {
-                List<FilterEntry> methodFilters = this.filters.get(method);
-                if (methodFilters != null && !methodFilters.isEmpty()) {
-                    List<FilterEntry> prefixedFilters = new ArrayList<>();
-                    for (FilterEntry filterEntry : methodFilters) {
-                        Pattern pattern = filterEntry.pattern;
-                        Filter filter = filterEntry.filter;
-                        Pattern newPattern = Pattern.compile("^" + basePath + pattern.pattern().substring(1));
-                        prefixedFilters.add(new FilterEntry(newPattern, filter));
-                    }
-                    // Ensure previousFilters has a non-null list for this method
-                    List<FilterEntry> previousMethodFilters = previousFilters.get(method);
-                    if (previousMethodFilters == null) {
-                        previousMethodFilters = new ArrayList<>();
-                        previousFilters.put(method, previousMethodFilters);
-                    }
-                    previousMethodFilters.addAll(prefixedFilters);
-                }
+            String key = hostName.toLowerCase(Locale.ROOT);
+            if (hosts.containsKey(key)) {
+                throw new IllegalStateException("Host already registered: " + hostName);
             }
-
-            // Restore endpoints and filters
-            this.endPoints = previousEndPoints;
-            this.wsEndPoints = previousWsEndPoints;
-            this.filters = previousFilters;
-            return new PathContext(serverState);
+            Registrations previous = this.registrations;
+            Registrations virtualHost = new Registrations();
+            this.registrations = virtualHost;
+            inHost = true;
+            try {
+                runnable.run();
+            } finally {
+                inHost = false;
+                this.registrations = previous;
+            }
+            // webSockets are served on their own port, whatever the host
+            previous.webSockets.putAll(virtualHost.webSockets);
+            hosts.put(key, virtualHost);
+            return this;
         }
 
         // TODO was protected - could be static?
@@ -263,19 +328,30 @@ public class Tiny {
             if (serverState.hasStarted()) {
                 throw new IllegalStateException("Cannot add endpoints after the server has started.");
             }
+            String regex = "^" + Router.expandPathParams(path) + "$";
+            if (registrations.endPoints.get(method).containsKey(regex)) {
+                throw new IllegalStateException("Endpoint already registered for " + path);
+            }
+            registrations.addEndPoint(method, regex, endPoint);
+            return this;
+        }
 
-            Pattern p = Pattern.compile("^" + path + "$");
-            Map<Pattern, EndPoint> endPointsForMethod = endPoints.get(method);
-            for (Pattern pattern : endPointsForMethod.keySet()) {
-                if (p.pattern().equals(pattern.pattern())) {
-                    throw new IllegalStateException("Endpoint already registered for " + path);
+        /**
+         * Registers many endPoints for one method in one go, for example routes generated from an API spec.
+         * Every path is checked before any is added, so a duplicate leaves none of them registered.
+         */
+        public WebServerContext endPoints(HttpMethods method, Map<String, EndPoint> pathsToEndPoints) {
+            if (serverState.hasStarted()) {
+                throw new IllegalStateException("Cannot add endpoints after the server has started.");
+            }
+            Map<String, EndPoint> regexes = new LinkedHashMap<>(pathsToEndPoints.size() * 4 / 3 + 1);
+            for (Map.Entry<String, EndPoint> entry : pathsToEndPoints.entrySet()) {
+                String regex = "^" + Router.expandPathParams(entry.getKey()) + "$";
+                if (registrations.endPoints.get(method).containsKey(regex) || regexes.put(regex, entry.getValue()) != null) {
+                    throw new IllegalStateException("Endpoint already registered for " + entry.getKey());
                 }
             }
-            endPointsForMethod.put(p, endPoint);
-
-
-            endPoints.computeIfAbsent(method, k -> new HashMap<>())
-                    .put(Pattern.compile("^" + path + "$"), endPoint);
+            regexes.forEach((regex, endPoint) -> registrations.addEndPoint(method, regex, endPoint));
             return this;
         }
 
@@ -283,7 +359,7 @@ public class Tiny {
             if (serverState.hasStarted()) {
                 throw new IllegalStateException("Cannot add WebSocket handlers after the server has started.");
             }
-            wsEndPoints.put(Pattern.compile("^" + path + "$"), wsHandler);
+            registrations.webSockets.put("^" + Router.expandPathParams(path) + "$", wsHandler);
             return this;
         }
 
@@ -291,15 +367,12 @@ public class Tiny {
             if (serverState.hasStarted()) {
                 throw new IllegalStateException("Cannot add filters after the server has started.");
             }
-
-            FilterEntry o = new FilterEntry(Pattern.compile("^" + path + "$"), filter);
-            List<FilterEntry> filterEntries = filters.get(method);
-            for (FilterEntry filterEntry : filterEntries) {
-                if (o.pattern.pattern().equals(filterEntry.pattern.pattern())) {
-                    throw new IllegalStateException("Filter already registered for " + path);
-                }
+            String regex = "^" + Router.expandPathParams(path) + "$";
+            Map<String, Registrations.PendingFilter> filtersForMethod = registrations.filters.get(method);
+            if (filtersForMethod.containsKey(regex)) {
+                throw new IllegalStateException("Filter already registered for " + path);
             }
-            filterEntries.add(o);
+            filtersForMethod.put(regex, new Registrations.PendingFilter(filter, System.nanoTime()));
             return this;
         }
 
@@ -311,624 +384,4938 @@ public class Tiny {
             if (serverState.hasStarted()) {
                 throw new IllegalStateException("Cannot add static serving after the server has started.");
             }
-            endPoint(HttpMethods.GET, basePath + "/(.*)", (req, res, ctx) -> {
-                String filePath = ctx.getParam("1");
-                Path path = Paths.get(directory, filePath);
-                if (Files.exists(path) && !Files.isDirectory(path)) {
-                    CompletableFuture.supplyAsync(() -> {
-                        try {
-                            return Files.readAllBytes(path);
-                        } catch (IOException e) {
-                            throw new ServerException("Internal Static File Serving error for " + path, e);
-                        }
-                    }).thenAccept(fileBytes -> {
-                        String contentType;
-                        try {
-                            contentType = Files.probeContentType(path);
-                            if (contentType == null) {
-                                contentType = "application/octet-stream";
-                            }
-                        } catch (IOException e) {
-                            contentType = "application/octet-stream";
-                        }
-                        res.setHeader("Content-Type", contentType);
-                        res.write(new String(fileBytes, StandardCharsets.UTF_8), 200);
-                    }).exceptionally(ex -> {
-                        sendErrorResponse(res.exchange, 500, "Internal server error");
-                        return null;
-                    });
-                } else {
-                    sendErrorResponse(res.exchange, 404, "Not found");
-                }
-            });
+            StaticFiles files = new StaticFiles(Paths.get(directory), serverState);
+            serverState.closeOnStop(files);
+            endPoint(HttpMethods.GET, basePath + "/(.*)", (req, res, ctx) -> files.serve(res, ctx.getParam("1")));
             return this;
         }
     }
 
-    public static class PathContext extends AbstractWebServerContext {
-
-        public PathContext(ServerState serverState) {
-            super(serverState);
+    // Content-Types by file extension, for static files and Response.write(Path). Asking Files.probeContentType
+    // instead can mean, on Linux, a look through several detectors and mime files for each file
+    public static final class MimeTypes {
+        private static final Map<String, String> BUILT_IN = Map.ofEntries(
+                Map.entry("html", "text/html"), Map.entry("htm", "text/html"), Map.entry("css", "text/css"),
+                Map.entry("js", "text/javascript"), Map.entry("mjs", "text/javascript"), Map.entry("json", "application/json"),
+                Map.entry("map", "application/json"), Map.entry("webmanifest", "application/manifest+json"),
+                Map.entry("xml", "application/xml"), Map.entry("txt", "text/plain"), Map.entry("md", "text/markdown"),
+                Map.entry("csv", "text/csv"), Map.entry("yaml", "application/yaml"), Map.entry("yml", "application/yaml"),
+                Map.entry("java", "text/x-java"), Map.entry("class", "application/java-vm"), Map.entry("jar", "application/java-archive"),
+                Map.entry("wasm", "application/wasm"), Map.entry("svg", "image/svg+xml"), Map.entry("png", "image/png"),
+                Map.entry("jpg", "image/jpeg"), Map.entry("jpeg", "image/jpeg"), Map.entry("gif", "image/gif"),
+                Map.entry("webp", "image/webp"), Map.entry("avif", "image/avif"), Map.entry("ico", "image/x-icon"),
+                Map.entry("bmp", "image/bmp"), Map.entry("woff", "font/woff"), Map.entry("woff2", "font/woff2"),
+                Map.entry("ttf", "font/ttf"), Map.entry("otf", "font/otf"), Map.entry("mp4", "video/mp4"),
+                Map.entry("webm", "video/webm"), Map.entry("ogg", "audio/ogg"), Map.entry("mp3", "audio/mpeg"),
+                Map.entry("wav", "audio/wav"), Map.entry("pdf", "application/pdf"), Map.entry("zip", "application/zip"),
+                Map.entry("gz", "application/gzip"), Map.entry("tar", "application/x-tar"), Map.entry("bin", "application/octet-stream"));
+
+        private MimeTypes() {
         }
 
+        // by the name's extension, from Config's mimeTypes before the built-in ones. Null if neither has it
+        public static String of(String fileName, Map<String, String> overrides) {
+            int dot = fileName.lastIndexOf('.');
+            if (dot < 0 || dot == fileName.length() - 1) {
+                return null;
+            }
+            String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+            String contentType = overrides.get(extension);
+            return contentType != null ? contentType : BUILT_IN.get(extension);
+        }
     }
 
-    public static class Config {
-        public final InetSocketAddress inetSocketAddress;
-        public final int wsPort;
-        public final int webBacklog;
-        public final int wsBacklog;
-        public final InetAddress wsBindAddr;
-        public final int socketTimeoutMs;
-        public final boolean webKeepAlive;
-        public final int webIdleInterval = 10;
-
-        private Config(InetSocketAddress inetSocketAddress, int wsPort, int wsBacklog, InetAddress wsBindAddr, int socketTimeoutMs, boolean webKeepAlive, int webBacklog) {
-            this.inetSocketAddress = inetSocketAddress;
-            this.wsPort = wsPort;
-            this.wsBacklog = wsBacklog;
-            this.wsBindAddr = wsBindAddr;
-            this.socketTimeoutMs = socketTimeoutMs;
-            this.webKeepAlive = webKeepAlive;
-            this.webBacklog = webBacklog;
+    /**
+     * The files under one directory, as serveStaticFilesAsync(..) serves them. Anything that needs the disk is done on
+     * the server's static file threads. With Config.withStaticFileCache(maxBytes) the files most worth keeping are
+     * held in RAM, ready to send, and answered on the request's own thread. A WatchService on their directories drops
+     * them as they change - it and its thread are only started when there's such a cache. What's known of each path -
+     * whether it's there, its size, age and type - is kept for a couple of seconds (Config.withStaticMetadataTtl), or
+     * until a watch says otherwise, so a repeat request, or a 404 storm, costs no filesystem lookups.
+     * A client that takes gzip gets a file's up-to-date .gz sibling if there is one, or - with responseCompression
+     * on - the file gzipped once and kept, in a cache of its own, for everyone after. With
+     * Config.withStaticFileMapping(minBytes), files that big are memory-mapped, one mapping shared by all their
+     * downloads, so they're sent from the OS's page cache rather than read through the heap.
+     */
+    public static class StaticFiles implements Closeable {
+
+        private static final int MAX_METADATA = 10_000;
+        private static final int MAX_MAPPINGS = 64;
+        private static final long MAPPING_IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+        // a MappedByteBuffer can't pass 2GB, so bigger files are mapped a region at a time
+        private static final int REGION = 1 << 30;
+
+        private final Path root;
+        private final ServerState serverState;
+        private final Entries files;
+        private final Entries gzipped;
+        private final ConcurrentHashMap<Path, Meta> metadata = new ConcurrentHashMap<>();
+        private final long metadataTtlNanos;
+        private final ConcurrentHashMap<Path, Mapping> mappings = new ConcurrentHashMap<>();
+        private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+        // bumped on every change seen, so a read that raced one isn't cached
+        private final AtomicLong changes = new AtomicLong();
+        private final LongAdder cacheHits = new LongAdder();
+        private WatchService watcher;
+        private boolean closed;
+
+        // A path as it was last looked at. Not found covers directories and anything else that isn't a regular file
+        private static final class Meta {
+            final boolean found;
+            final long size;
+            final String contentType;
+            final String lastModified;
+            final String etag;
+            // that of an up-to-date .gz sibling, or -1 for none
+            final long siblingSize;
+            final long checked = System.nanoTime();
+
+            Meta(boolean found, long size, String contentType, String lastModified, String etag, long siblingSize) {
+                this.found = found;
+                this.size = size;
+                this.contentType = contentType;
+                this.lastModified = lastModified;
+                this.etag = etag;
+                this.siblingSize = siblingSize;
+            }
         }
 
-        public static Config create() {
-            return new Config(null, 0, 50, null, 30000, true, 50);
+        private static final class Cached {
+            final byte[] bytes;
+            final String contentType;
+            final String lastModified;
+            final String etag;
+            final String contentEncoding;
+            // there's a gzipped form of this to be had, so caches must key on Accept-Encoding
+            final boolean varies;
+            volatile int hits = 1;
+            volatile double value;
+
+            Cached(byte[] bytes, String contentType, String lastModified, String etag, String contentEncoding, boolean varies) {
+                this.bytes = bytes;
+                this.contentType = contentType;
+                this.lastModified = lastModified;
+                this.etag = etag;
+                this.contentEncoding = contentEncoding;
+                this.varies = varies;
+            }
         }
 
-        public Config withInetSocketAddress(InetSocketAddress inetSocketAddress) {
-            return new Config(inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog);
-        }
+        // A file mapped read-only, for as long as it's the same size and age. Java has no unmapping a buffer, short of
+        // dropping it and letting the collector do it, so that's what releasing one means. It also means a download
+        // still holding one is safe whatever the registry has done with it since
+        private static final class Mapping {
+            final String etag;
+            final long size;
+            final MappedByteBuffer[] regions;
+            volatile long lastUsed = System.nanoTime();
+
+            Mapping(Path path, long size, String etag) throws IOException {
+                this.etag = etag;
+                try (FileChannel channel = FileChannel.open(path)) {
+                    // the file may have shrunk since it was looked at, and reading a mapped page past its end is a SIGBUS
+                    this.size = Math.min(size, channel.size());
+                    this.regions = new MappedByteBuffer[(int) ((this.size + REGION - 1) / REGION)];
+                    for (int i = 0; i < regions.length; i++) {
+                        long position = (long) i * REGION;
+                        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION, this.size - position));
+                    }
+                }
+            }
 
-        public Config withWebSocketPort(int wsPort) {
-            return new Config(this.inetSocketAddress, wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog);
+            // in slices, each through a small buffer, as the exchange only takes bytes from the heap
+            void writeRange(OutputStream out, long from, long count) throws IOException {
+                byte[] slice = new byte[(int) Math.min(count, 64 * 1024)];
+                while (count > 0) {
+                    ByteBuffer region = regions[(int) (from / REGION)].duplicate();
+                    region.position((int) (from % REGION));
+                    int n = (int) Math.min(Math.min(count, slice.length), region.remaining());
+                    region.get(slice, 0, n);
+                    out.write(slice, 0, n);
+                    from += n;
+                    count -= n;
+                }
+            }
         }
 
-        public Config withWsBacklog(int wsBacklog) {
-            return new Config(this.inetSocketAddress, this.wsPort, wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog);
-        }
+        // Bounded by bytes, the least valuable going first: Greedy-Dual-Size-Frequency's, the seldom asked for,
+        // for the room they take
+        private static final class Entries {
+            private final long maxBytes;
+            private final ConcurrentHashMap<Path, Cached> map = new ConcurrentHashMap<>();
+            private final AtomicLong bytes = new AtomicLong();
+            // the value of the last entry evicted, which newer entries start from
+            private volatile double inflation;
+
+            Entries(long maxBytes) {
+                this.maxBytes = maxBytes;
+            }
 
-        public Config withWebBacklog(int webBacklog) {
-            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, webBacklog);
-        }
+            boolean enabled() {
+                return maxBytes > 0;
+            }
 
-        public Config withHostAndWebPort(String host, int webPort) {
-            return new Config(new InetSocketAddress(host, webPort), this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog);
-        }
+            // no one entry gets more than a quarter of it
+            boolean fits(long size) {
+                return size <= maxBytes / 4;
+            }
 
-        public Config withWsBindAddr(InetAddress wsBindAddr) {
-            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog);
-        }
+            Cached get(Path path) {
+                Cached cached = map.get(path);
+                if (cached != null) {
+                    cached.hits++;
+                    cached.value = inflation + (double) cached.hits / Math.max(cached.bytes.length, 1);
+                }
+                return cached;
+            }
 
-        public Config withSocketTimeoutMillis(int socketTimeoutMs) {
-            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, socketTimeoutMs, this.webKeepAlive, this.webBacklog);
-        }
+            synchronized void put(Path path, Cached cached) {
+                cached.value = inflation + 1.0 / Math.max(cached.bytes.length, 1);
+                Cached previous = map.put(path, cached);
+                bytes.addAndGet(cached.bytes.length - (previous == null ? 0 : previous.bytes.length));
+                if (bytes.get() <= maxBytes) {
+                    return;
+                }
+                List<Map.Entry<Path, Cached>> entries = new ArrayList<>(map.entrySet());
+                entries.sort(Comparator.comparingDouble(entry -> entry.getValue().value));
+                for (Map.Entry<Path, Cached> entry : entries) {
+                    if (bytes.get() <= maxBytes) {
+                        break;
+                    }
+                    if (map.remove(entry.getKey(), entry.getValue())) {
+                        bytes.addAndGet(-entry.getValue().bytes.length);
+                        inflation = Math.max(inflation, entry.getValue().value);
+                    }
+                }
+            }
 
-        public Config withWebPort(int webPort) {
-            return new Config(new InetSocketAddress(webPort), this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog);
-        }
+            // everything at or under path
+            void invalidate(Path path) {
+                for (Map.Entry<Path, Cached> entry : map.entrySet()) {
+                    if (entry.getKey().startsWith(path) && map.remove(entry.getKey(), entry.getValue())) {
+                        bytes.addAndGet(-entry.getValue().bytes.length);
+                    }
+                }
+            }
 
-        public Config withWebKeepAlive(boolean webKeepAlive) {
-            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, webKeepAlive, this.webBacklog);
+            synchronized void clear() {
+                map.clear();
+                bytes.set(0);
+            }
         }
 
-    }
-
-    public static class WebServer extends AbstractWebServerContext {
-
-        private final HttpServer httpServer;
-        private final WebSocketServer socketServer;
-        private Thread simpleWebSocketServerThread = null;
-        private Config config;
-        private final DependencyManager dependencyManager;
+        public StaticFiles(Path directory, ServerState serverState) {
+            this.root = directory.toAbsolutePath().normalize();
+            this.serverState = serverState;
+            this.files = new Entries(serverState.config.staticFileCacheSize);
+            this.gzipped = new Entries(serverState.config.staticCompressedCacheSize);
+            this.metadataTtlNanos = TimeUnit.MILLISECONDS.toNanos(serverState.config.staticMetadataTtlMs);
+        }
 
-        public WebServer(Config config) {
-            this(config, new DependencyManager(new DefaultComponentCache(null)));
+        public void serve(Response res, String relativePath) {
+            Path path = resolve(relativePath);
+            if (path == null) {
+                res.write("Not found", 404);
+                return;
+            }
+            // ranges are of the file as it is, never of a gzipped form
+            boolean gzip = !res.exchange.getRequestHeaders().containsKey("Range")
+                    && "gzip".equals(Response.acceptedCoding(res.exchange.getRequestHeaders().getFirst("Accept-Encoding")));
+            Cached cached = gzip ? gzipped.get(path) : null;
+            if (cached == null && files.enabled()) {
+                cached = files.get(path);
+                if (cached != null && gzip && cached.varies) {
+                    cached = null; // the gzipped form is to be had from the disk
+                }
+            }
+            if (cached != null) {
+                cacheHits.increment();
+                send(res, cached);
+                return;
+            }
+            Meta meta = metadata.get(path);
+            if (meta != null && System.nanoTime() - meta.checked >= metadataTtlNanos) {
+                meta = null;
+            }
+            if (meta != null && !meta.found) {
+                res.write("Not found", 404);
+                return;
+            }
+            Meta known = meta;
+            CompletableFuture.runAsync(() -> {
+                try {
+                    fromDisk(res, path, gzip, known);
+                } catch (IOException e) {
+                    throw new ServerException("Internal Static File Serving error for " + path, e);
+                }
+            }, serverState.staticFileExecutor()).exceptionally(ex -> {
+                res.write("Internal server error", 500);
+                return null;
+            });
         }
 
-        public WebServer(Config config, DependencyManager dependencyManager) {
-            super(new ServerState());
-            this.config = config;
-            this.dependencyManager = dependencyManager;
+        // under the root, or null for a path that would climb out of it
+        private Path resolve(String relativePath) {
             try {
-                httpServer = makeHttpServer();
-            } catch (IOException e) {
-                throw new ServerException("Could not create HttpServer", e);
+                Path path = root.resolve(relativePath).normalize();
+                return path.startsWith(root) ? path : null;
+            } catch (InvalidPathException e) {
+                return null;
             }
+        }
 
-            for (HttpMethods method : HttpMethods.values()) {
-                endPoints.put(method, new HashMap<>());
-                filters.put(method, new ArrayList<>());
+        private void fromDisk(Response res, Path path, boolean gzip, Meta meta) throws IOException {
+            Config config = serverState.config;
+            // only a RAM cache needs the watch, and its thread. Without one, what's known of a path just lasts its TTL
+            boolean watching = (files.enabled() || (gzipped.enabled() && config.responseCompression)) && watch(path.getParent());
+            long before = changes.get();
+            if (meta == null) {
+                meta = lookUp(path);
+                if (metadataTtlNanos > 0 && changes.get() == before) {
+                    if (metadata.size() >= MAX_METADATA) {
+                        metadata.clear();
+                    }
+                    metadata.put(path, meta);
+                }
             }
-
-            if (config.wsPort > 0) {
-                socketServer = new WebSocketServer(config, dependencyManager) {
-                    @Override
-                    protected WebSocketMessageHandler getHandler(String path) {
-                        for (Map.Entry<Pattern, WebSocketMessageHandler> patternWebSocketMessageHandlerEntry : wsEndPoints.entrySet()) {
-                            Pattern key = patternWebSocketMessageHandlerEntry.getKey();
-                            WebSocketMessageHandler value = patternWebSocketMessageHandlerEntry.getValue();
-                            if (key.matcher(path).matches()) {
-                                return value;
-                            }
-                        }
-                        return FOUR_OH_FOUR;
+            if (!meta.found) {
+                res.write("Not found", 404);
+                return;
+            }
+            String contentType = meta.contentType;
+            String lastModified = meta.lastModified;
+            String etag = meta.etag;
+            Path sibling = path.resolveSibling(path.getFileName() + ".gz");
+            boolean compressOnce = meta.siblingSize < 0 && config.responseCompression && watching && gzipped.enabled()
+                    && gzipped.fits(meta.size) && meta.size >= config.compressionThreshold
+                    && Response.compressibleType(contentType);
+            boolean varies = meta.siblingSize >= 0 || compressOnce;
+
+            if (gzip && varies) {
+                String gzipETag = etag.substring(0, etag.length() - 1) + "-gz\"";
+                if (meta.siblingSize >= 0 && !(watching && gzipped.fits(meta.siblingSize))) {
+                    res.setHeader("Content-Type", contentType);
+                    res.setHeader("Content-Encoding", "gzip");
+                    res.setHeader("Vary", "Accept-Encoding");
+                    res.setHeader("Last-Modified", lastModified);
+                    if (!res.notModified(gzipETag)) {
+                        res.write(sibling, 200);
                     }
+                    return;
+                }
+                byte[] bytes = meta.siblingSize >= 0 ? Files.readAllBytes(sibling) : gzip(path);
+                Cached cached = new Cached(bytes, contentType, lastModified, gzipETag, "gzip", true);
+                if (watching && changes.get() == before) {
+                    gzipped.put(path, cached);
+                }
+                send(res, cached);
+                return;
+            }
 
-                    @Override
-                    protected void webSocketTimeout(String path, InetAddress inetAddress, SocketTimeoutException e) {
-                        WebServer.this.webSocketTimeout(path, inetAddress, e);
-                    }
+            long mappedFileSize = config.staticMappedFileSize;
+            if (mappedFileSize > 0 && meta.size >= mappedFileSize) {
+                Mapping mapping = mapping(path, meta.size, etag);
+                res.setHeader("Content-Type", contentType);
+                res.setHeader("Last-Modified", lastModified);
+                if (!res.notModified(etag)) {
+                    res.write(200, mapping.size, mapping::writeRange);
+                }
+                return;
+            }
 
-                    @Override
-                    protected void webSocketIoException(String path, InetAddress inetAddress, IOException e) {
-                        WebServer.this.webSocketIoException(path, inetAddress, e);
-                    }
+            if (watching && files.enabled() && files.fits(meta.size)) {
+                Cached cached = new Cached(Files.readAllBytes(path), contentType, lastModified, etag, null, varies);
+                if (changes.get() == before) {
+                    files.put(path, cached);
+                }
+                send(res, cached);
+                return;
+            }
+            res.setHeader("Content-Type", contentType);
+            res.setHeader("Last-Modified", lastModified);
+            if (varies) {
+                res.setHeader("Vary", "Accept-Encoding");
+            }
+            if (!res.notModified(etag)) {
+                // straight from the file to the exchange, with a Content-Length, or just the bytes a Range asks for
+                res.write(path, 200);
+            }
+        }
 
-                    @Override
-                    protected ServerSocket createWebSocketServer(int wsPort, int wsBacklog, InetAddress wsBindAddr) throws IOException {
-                        return WebServer.this.makeWebSocketServer(wsPort, wsBacklog, wsBindAddr);
+        // The one already shared for this version of the file, or a new one. Idle mappings are released as others are
+        // asked for, and the least recently used goes when there are too many
+        private Mapping mapping(Path path, long size, String etag) throws IOException {
+            long now = System.nanoTime();
+            Mapping mapping = mappings.get(path);
+            if (mapping == null || !mapping.etag.equals(etag)) {
+                synchronized (mappings) {
+                    mapping = mappings.get(path);
+                    if (mapping == null || !mapping.etag.equals(etag)) {
+                        mapping = new Mapping(path, size, etag);
+                        mappings.put(path, mapping);
                     }
-                };
-            } else {
-                socketServer = null;
+                }
             }
-
-            httpServer.createContext("/", exchange -> {
-                handleHttpRequest(dependencyManager, exchange);
-            });
+            mapping.lastUsed = now;
+            mappings.values().removeIf(other -> now - other.lastUsed > MAPPING_IDLE_NANOS);
+            while (mappings.size() > MAX_MAPPINGS) {
+                mappings.entrySet().stream().min(Comparator.comparingLong(entry -> entry.getValue().lastUsed))
+                        .ifPresent(entry -> mappings.remove(entry.getKey(), entry.getValue()));
+            }
+            return mapping;
         }
 
-        protected ServerSocket makeWebSocketServer(int wsPort, int wsBacklog, InetAddress wsBindAddr) throws IOException {
-            return new ServerSocket(wsPort, wsBacklog, wsBindAddr);
+        public int getMappedFiles() {
+            return mappings.size();
         }
 
-        private void handleHttpRequest(DependencyManager dependencyManager, HttpExchange exchange) {
-            String path = exchange.getRequestURI().getPath();
-            HttpMethods method = HttpMethods.valueOf(exchange.getRequestMethod());
-
-            Map<Pattern, EndPoint> methodEndPoints = endPoints.get(method);
-            if (methodEndPoints == null) {
-                sendErrorResponse(exchange, 405, "Method not allowed");
-                return;
+        private Meta lookUp(Path path) throws IOException {
+            BasicFileAttributes attributes = attributes(path);
+            if (attributes == null) {
+                return new Meta(false, -1, null, null, null, -1);
             }
+            String contentType = MimeTypes.of(path.getFileName().toString(), serverState.config.mimeTypes);
+            if (contentType == null) {
+                contentType = Files.probeContentType(path);
+            }
+            if (contentType == null) {
+                contentType = "application/octet-stream";
+            }
+            // a .gz sibling older than the file is left over from a previous version of it
+            BasicFileAttributes sibling = attributes(path.resolveSibling(path.getFileName() + ".gz"));
+            long siblingSize = sibling == null || sibling.lastModifiedTime().compareTo(attributes.lastModifiedTime()) < 0 ? -1 : sibling.size();
+            return new Meta(true, attributes.size(), contentType,
+                    Response.HTTP_DATE.format(attributes.lastModifiedTime().toInstant()),
+                    "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis()) + "\"",
+                    siblingSize);
+        }
 
-            List<FilterStat> filterSequence = new ArrayList<>();
-            long startTime = System.currentTimeMillis();
-            boolean routeMatched = false;
-            Map<String, Object> stats = new HashMap<>();
-            stats.put("filters", filterSequence);
-
+        // a regular file's, or null
+        private static BasicFileAttributes attributes(Path path) throws IOException {
             try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.isRegularFile() ? attributes : null;
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
 
-                for (Map.Entry<Pattern, EndPoint> route : methodEndPoints.entrySet()) {
-                    Matcher matcher = route.getKey().matcher(path);
-                    if (matcher.matches()) {
-                        routeMatched = true;
-                        Map<String, String> params = new HashMap<>();
-                        int groupCount = matcher.groupCount();
-                        Pattern key = route.getKey();
-                        for (int i = 1; i <= groupCount; i++) {
-                            params.put(String.valueOf(i), matcher.group(i));
-                        }
+        // as small as gzip gets it, as it's done once rather than per request
+        private static byte[] gzip(Path path) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes, 64 * 1024) {{
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }}) {
+                Files.copy(path, out);
+            }
+            return bytes.toByteArray();
+        }
 
-                        final Request request = new Request(exchange);
-                        final Response response = new Response(exchange);
-                        final Attributes attributes = new Attributes(exchange);
-                        final ComponentCache requestCache = new DefaultComponentCache(dependencyManager.cache);
+        private static void send(Response res, Cached cached) {
+            res.setHeader("Content-Type", cached.contentType);
+            res.setHeader("Last-Modified", cached.lastModified);
+            if (cached.contentEncoding != null) {
+                res.setHeader("Content-Encoding", cached.contentEncoding);
+            }
+            if (cached.varies) {
+                res.setHeader("Vary", "Accept-Encoding");
+            }
+            if (!res.notModified(cached.etag)) {
+                res.write(200, cached.bytes.length, (out, from, count) -> out.write(cached.bytes, (int) from, (int) count));
+            }
+        }
 
+        // for everything at or under path
+        private void invalidate(Path path) {
+            changes.incrementAndGet();
+            files.invalidate(path);
+            gzipped.invalidate(path);
+            String name = path.getFileName() == null ? "" : path.getFileName().toString();
+            if (name.endsWith(".gz")) {
+                // the file the sibling is the gzipped form of
+                Path file = path.resolveSibling(name.substring(0, name.length() - 3));
+                gzipped.invalidate(file);
+                metadata.remove(file);
+            }
+            metadata.keySet().removeIf(known -> known.startsWith(path));
+        }
+
+        // false if changes in the directory can't be heard about, in which case nothing from it is cached
+        private boolean watch(Path directory) {
+            if (watched.contains(directory)) {
+                return true;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                try {
+                    if (watcher == null) {
+                        watcher = root.getFileSystem().newWatchService();
+                        Thread.ofPlatform().daemon().name("tiny-static-watcher").start(this::watchForChanges);
+                    }
+                    directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                    return false;
+                }
+                watched.add(directory);
+                return true;
+            }
+        }
+
+        private void watchForChanges() {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            invalidate(root);
+                        } else {
+                            invalidate(directory.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        // the directory itself has gone
+                        watched.remove(directory);
+                        invalidate(directory);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // closed
+            }
+        }
+
+        public long getCachedBytes() {
+            return files.bytes.get();
+        }
+
+        public long getGzippedBytes() {
+            return gzipped.bytes.get();
+        }
+
+        // responses sent from RAM, either cache's
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            files.clear();
+            gzipped.clear();
+            metadata.clear();
+            mappings.clear();
+            if (watcher != null) {
+                watcher.close();
+            }
+        }
+    }
+
+    public static class PathContext extends AbstractWebServerContext {
+
+        public PathContext(ServerState serverState) {
+            super(serverState);
+        }
+
+    }
+
+    // endPoints and filters registered inside a host(..) block
+    /**
+     * EndPoints, filters and webSockets as they are registered, keyed by their anchored regex so that duplicate
+     * checks are hash lookups. Nothing is compiled until start() turns them into a RoutingTable, which compiles
+     * each distinct regex once, however many path(..) blocks it was nested in.
+     */
+    public static class Registrations {
+        public record PendingFilter(Filter filter, long whenDefined) {}
+
+        public final Map<HttpMethods, Map<String, EndPoint>> endPoints = new EnumMap<>(HttpMethods.class);
+        public final Map<HttpMethods, Map<String, PendingFilter>> filters = new EnumMap<>(HttpMethods.class);
+        public final Map<String, WebSocketMessageHandler> webSockets = new LinkedHashMap<>();
+        // every endPoint regex cut short at each of its slashes, so path(..) can spot a used base path without a scan
+        private final Set<String> pathPrefixes = new HashSet<>();
+
+        public Registrations() {
+            for (HttpMethods method : HttpMethods.values()) {
+                endPoints.put(method, new LinkedHashMap<>());
+                filters.put(method, new LinkedHashMap<>());
+            }
+        }
+
+        public void addEndPoint(HttpMethods method, String regex, EndPoint endPoint) {
+            endPoints.get(method).put(regex, endPoint);
+            for (int slash = regex.indexOf('/'); slash >= 0; slash = regex.indexOf('/', slash + 1)) {
+                pathPrefixes.add(regex.substring(0, slash));
+            }
+        }
+
+        public boolean hasPathPrefix(String regexPrefix) {
+            return pathPrefixes.contains(regexPrefix);
+        }
+
+        // a path(..) block's registrations, with the block's base regex put after each one's leading '^'
+        public void addAll(String baseRegex, Registrations inPath) {
+            String prefix = "^" + baseRegex;
+            for (HttpMethods method : HttpMethods.values()) {
+                for (Map.Entry<String, EndPoint> entry : inPath.endPoints.get(method).entrySet()) {
+                    addEndPoint(method, prefix + entry.getKey().substring(1), entry.getValue());
+                }
+                Map<String, PendingFilter> methodFilters = filters.get(method);
+                for (Map.Entry<String, PendingFilter> entry : inPath.filters.get(method).entrySet()) {
+                    methodFilters.put(prefix + entry.getKey().substring(1), entry.getValue());
+                }
+            }
+            for (Map.Entry<String, WebSocketMessageHandler> entry : inPath.webSockets.entrySet()) {
+                webSockets.put(prefix + entry.getKey().substring(1), entry.getValue());
+            }
+        }
+
+        public RoutingTable toRoutingTable(boolean linearTimeMatching) {
+            Map<String, Pattern> compiled = new HashMap<>();
+            Map<HttpMethods, Map<Pattern, EndPoint>> compiledEndPoints = new EnumMap<>(HttpMethods.class);
+            Map<HttpMethods, List<FilterEntry>> compiledFilters = new EnumMap<>(HttpMethods.class);
+            for (HttpMethods method : HttpMethods.values()) {
+                Map<Pattern, EndPoint> methodEndPoints = new LinkedHashMap<>();
+                endPoints.get(method).forEach((regex, endPoint) -> methodEndPoints.put(compiled.computeIfAbsent(regex, Pattern::compile), endPoint));
+                compiledEndPoints.put(method, methodEndPoints);
+                List<FilterEntry> methodFilters = new ArrayList<>();
+                filters.get(method).forEach((regex, pending) -> methodFilters.add(new FilterEntry(compiled.computeIfAbsent(regex, Pattern::compile), pending.filter(), pending.whenDefined())));
+                compiledFilters.put(method, methodFilters);
+            }
+            return new RoutingTable(compiledEndPoints, compiledFilters, linearTimeMatching);
+        }
+
+        public Map<Pattern, WebSocketMessageHandler> compiledWebSockets() {
+            Map<Pattern, WebSocketMessageHandler> compiled = new LinkedHashMap<>();
+            webSockets.forEach((regex, wsHandler) -> compiled.put(Pattern.compile(regex), wsHandler));
+            return compiled;
+        }
+    }
+
+    public static class Config {
+        public final InetSocketAddress inetSocketAddress;
+        public final int wsPort;
+        public final int webBacklog;
+        public final int wsBacklog;
+        public final InetAddress wsBindAddr;
+        public final int socketTimeoutMs;
+        public final boolean webKeepAlive;
+        public final int webIdleInterval = 10;
+        public final int routeCacheSize;
+        public final boolean linearTimeMatching;
+        public final long maxRequestBodySize;
+        public final int multipartSpillThreshold;
+        public final long maxInflatedRequestBodySize;
+        public final boolean responseCompression;
+        public final int compressionThreshold;
+        public final boolean autoETags;
+        public final int staticFileThreads;
+        public final long staticFileCacheSize;
+        public final long staticCompressedCacheSize;
+        public final long staticMappedFileSize;
+        public final Map<String, String> mimeTypes;
+        public final long staticMetadataTtlMs;
+
+        private Config(InetSocketAddress inetSocketAddress, int wsPort, int wsBacklog, InetAddress wsBindAddr, int socketTimeoutMs, boolean webKeepAlive, int webBacklog, int routeCacheSize, boolean linearTimeMatching, long maxRequestBodySize, int multipartSpillThreshold, long maxInflatedRequestBodySize, boolean responseCompression, int compressionThreshold, boolean autoETags, int staticFileThreads, long staticFileCacheSize, long staticCompressedCacheSize, long staticMappedFileSize, Map<String, String> mimeTypes, long staticMetadataTtlMs) {
+            this.inetSocketAddress = inetSocketAddress;
+            this.wsPort = wsPort;
+            this.wsBacklog = wsBacklog;
+            this.wsBindAddr = wsBindAddr;
+            this.socketTimeoutMs = socketTimeoutMs;
+            this.webKeepAlive = webKeepAlive;
+            this.webBacklog = webBacklog;
+            this.routeCacheSize = routeCacheSize;
+            this.linearTimeMatching = linearTimeMatching;
+            this.maxRequestBodySize = maxRequestBodySize;
+            this.multipartSpillThreshold = multipartSpillThreshold;
+            this.maxInflatedRequestBodySize = maxInflatedRequestBodySize;
+            this.responseCompression = responseCompression;
+            this.compressionThreshold = compressionThreshold;
+            this.autoETags = autoETags;
+            this.staticFileThreads = staticFileThreads;
+            this.staticFileCacheSize = staticFileCacheSize;
+            this.staticCompressedCacheSize = staticCompressedCacheSize;
+            this.staticMappedFileSize = staticMappedFileSize;
+            this.mimeTypes = mimeTypes;
+            this.staticMetadataTtlMs = staticMetadataTtlMs;
+        }
+
+        public static Config create() {
+            return new Config(null, 0, 50, null, 30000, true, 50, 0, false, Long.MAX_VALUE, 256 * 1024, 32L * 1024 * 1024, false, 1024, false, 16, 0, 16L * 1024 * 1024, 0, Collections.emptyMap(), 2000);
+        }
+
+        public Config withInetSocketAddress(InetSocketAddress inetSocketAddress) {
+            return new Config(inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withWebSocketPort(int wsPort) {
+            return new Config(this.inetSocketAddress, wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withWsBacklog(int wsBacklog) {
+            return new Config(this.inetSocketAddress, this.wsPort, wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withWebBacklog(int webBacklog) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withHostAndWebPort(String host, int webPort) {
+            return new Config(new InetSocketAddress(host, webPort), this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withWsBindAddr(InetAddress wsBindAddr) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withSocketTimeoutMillis(int socketTimeoutMs) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withWebPort(int webPort) {
+            return new Config(new InetSocketAddress(webPort), this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withWebKeepAlive(boolean webKeepAlive) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withRouteCacheSize(int routeCacheSize) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withLinearTimeMatching(boolean linearTimeMatching) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withMaxRequestBodySize(long maxRequestBodySize) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withMultipartSpillThreshold(int multipartSpillThreshold) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withMaxInflatedRequestBodySize(long maxInflatedRequestBodySize) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withResponseCompression(boolean responseCompression) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withCompressionThreshold(int compressionThreshold) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withAutoETags(boolean autoETags) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withStaticFileThreads(int staticFileThreads) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withStaticFileCache(long staticFileCacheSize) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withStaticCompressedCache(long staticCompressedCacheSize) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        public Config withStaticFileMapping(long staticMappedFileSize) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, staticMappedFileSize, this.mimeTypes, this.staticMetadataTtlMs);
+        }
+
+        // for a file extension, such as "js" or ".js", over the built-in table's
+        public Config withMimeType(String extension, String contentType) {
+            Map<String, String> mimeTypes = new HashMap<>(this.mimeTypes);
+            mimeTypes.put((extension.startsWith(".") ? extension.substring(1) : extension).toLowerCase(Locale.ROOT), contentType);
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, Collections.unmodifiableMap(mimeTypes), this.staticMetadataTtlMs);
+        }
+
+        public Config withStaticMetadataTtl(long staticMetadataTtlMs) {
+            return new Config(this.inetSocketAddress, this.wsPort, this.wsBacklog, this.wsBindAddr, this.socketTimeoutMs, this.webKeepAlive, this.webBacklog, this.routeCacheSize, this.linearTimeMatching, this.maxRequestBodySize, this.multipartSpillThreshold, this.maxInflatedRequestBodySize, this.responseCompression, this.compressionThreshold, this.autoETags, this.staticFileThreads, this.staticFileCacheSize, this.staticCompressedCacheSize, this.staticMappedFileSize, this.mimeTypes, staticMetadataTtlMs);
+        }
+
+    }
+
+    public static class WebServer extends AbstractWebServerContext {
+
+        private final HttpServer httpServer;
+        private final WebSocketServer socketServer;
+        private Thread simpleWebSocketServerThread = null;
+        private Config config;
+        private final DependencyManager dependencyManager;
+        private RoutingTable routes;
+        private Map<String, RoutingTable> hostRoutes;
+        private Map<Pattern, WebSocketMessageHandler> webSocketRoutes = new LinkedHashMap<>();
+        private BoundedCache<RouteKey, ResolvedRoute> routeCache;
+
+        private record RouteKey(RoutingTable routes, HttpMethods method, String path) {}
+
+        private static final long MAX_SWALLOW = 1024 * 1024;
+
+        private static final Pattern AUTOMATIC_OPTIONS = Pattern.compile("(automatic OPTIONS)", Pattern.LITERAL);
+
+        public WebServer(Config config) {
+            this(config, new DependencyManager(new DefaultComponentCache(null)));
+        }
+
+        public WebServer(Config config, DependencyManager dependencyManager) {
+            super(new ServerState(config));
+            this.config = config;
+            this.dependencyManager = dependencyManager;
+            try {
+                httpServer = makeHttpServer();
+            } catch (IOException e) {
+                throw new ServerException("Could not create HttpServer", e);
+            }
+
+            if (config.wsPort > 0) {
+                socketServer = new WebSocketServer(config, dependencyManager) {
+                    @Override
+                    protected WebSocketMessageHandler getHandler(String path) {
+                        for (Map.Entry<Pattern, WebSocketMessageHandler> patternWebSocketMessageHandlerEntry : webSocketRoutes.entrySet()) {
+                            Pattern key = patternWebSocketMessageHandlerEntry.getKey();
+                            WebSocketMessageHandler value = patternWebSocketMessageHandlerEntry.getValue();
+                            if (key.matcher(path).matches()) {
+                                return value;
+                            }
+                        }
+                        return FOUR_OH_FOUR;
+                    }
+
+                    @Override
+                    protected void webSocketTimeout(String path, InetAddress inetAddress, SocketTimeoutException e) {
+                        WebServer.this.webSocketTimeout(path, inetAddress, e);
+                    }
+
+                    @Override
+                    protected void webSocketIoException(String path, InetAddress inetAddress, IOException e) {
+                        WebServer.this.webSocketIoException(path, inetAddress, e);
+                    }
+
+                    @Override
+                    protected ServerSocket createWebSocketServer(int wsPort, int wsBacklog, InetAddress wsBindAddr) throws IOException {
+                        return WebServer.this.makeWebSocketServer(wsPort, wsBacklog, wsBindAddr);
+                    }
+                };
+            } else {
+                socketServer = null;
+            }
+
+            httpServer.createContext("/", exchange -> {
+                handleHttpRequest(dependencyManager, exchange);
+            });
+        }
+
+        protected ServerSocket makeWebSocketServer(int wsPort, int wsBacklog, InetAddress wsBindAddr) throws IOException {
+            return new ServerSocket(wsPort, wsBacklog, wsBindAddr);
+        }
+
+        private void handleHttpRequest(DependencyManager dependencyManager, HttpExchange exchange) {
+            String path = exchange.getRequestURI().getPath();
+            HttpMethods method = methodOf(exchange.getRequestMethod());
+            if (method == null) {
+                limitRequestBody(exchange, config.maxRequestBodySize);
+                sendErrorResponse(exchange, 501, "Not implemented");
+                return;
+            }
+
+            List<FilterStat> filterSequence = new ArrayList<>();
+            long startTime = System.currentTimeMillis();
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("filters", filterSequence);
+
+            try {
+
+                RoutingTable routes = routesFor(exchange);
+                ResolvedRoute resolved = resolve(routes, method, path);
+                if (resolved == null && method == HttpMethods.HEAD) {
+                    // Response leaves the body out for HEAD requests
+                    resolved = resolve(routes, HttpMethods.GET, path);
+                }
+                if (resolved == null) {
+                    EnumSet<HttpMethods> allowed = routes.router.allowedMethods(path);
+                    if (!allowed.isEmpty()) {
+                        String allow = allowHeader(allowed);
+                        if (method != HttpMethods.OPTIONS) {
+                            exchange.getResponseHeaders().set("Allow", allow);
+                            limitRequestBody(exchange, config.maxRequestBodySize);
+                            sendErrorResponse(exchange, 405, "Method not allowed");
+                            stats.put("endpoint", "unmatched");
+                            stats.put("status", 405);
+                            return;
+                        }
+                        // filters still apply, so that CORS preflights can be answered by them
+                        resolved = new ResolvedRoute(new Route(HttpMethods.OPTIONS, AUTOMATIC_OPTIONS, (req, res, ctx) -> {
+                            res.setHeader("Allow", allow);
+                            res.write("", 204);
+                        }), new int[0], routes.filterChains.get(HttpMethods.OPTIONS), routes.filterChains.get(HttpMethods.OPTIONS).match(path));
+                    }
+                }
+                if (resolved != null) {
+                    Route route = resolved.route();
+                    if (!limitRequestBody(exchange, route.maxBodySize >= 0 ? route.maxBodySize : config.maxRequestBodySize)) {
+                        sendErrorResponse(exchange, 413, "Payload too large");
+                        stats.put("endpoint", route.pattern.pattern());
+                        stats.put("status", 413);
+                        return;
+                    }
+                    // the route's limit is on the bytes sent, so it's no guide to what they inflate to
+                    if (!inflateRequestBody(exchange, config.maxInflatedRequestBodySize)) {
+                        sendErrorResponse(exchange, 415, "Unsupported Content-Encoding");
+                        stats.put("endpoint", route.pattern.pattern());
+                        stats.put("status", 415);
+                        return;
+                    }
+                    RouteMatch routeMatch = new RouteMatch(route, path, resolved.groups(), config.linearTimeMatching);
+
+                    final Request request = new Request(exchange, config);
+                    final Response response = new Response(exchange, config);
+                    if (!route.compressible) {
+                        response.setCompression(false);
+                    }
+                    final Attributes attributes = new Attributes(exchange);
+                    final ComponentCache requestCache = new DefaultComponentCache(dependencyManager.cache);
+
+                    // a filter can read a multipart body as well as the endPoint, so its spilled parts go whoever read them
+                    try {
                         // Apply filters
-                        List<FilterEntry> methodFilters = new ArrayList<>();
-                        methodFilters.addAll(filters.get(method));
-                        methodFilters.addAll(filters.get(HttpMethods.ALL));
-                        methodFilters.sort(Comparator.comparingLong(FilterEntry::getWhenDefined));
-
-                        for (FilterEntry filterEntry : methodFilters) {
-                            Matcher filterMatcher = filterEntry.pattern.matcher(path);
-                            if (filterMatcher.matches()) {
-                                if (handleFilterMatch(exchange, filterEntry, filterMatcher, request, response, attributes, requestCache, matcher, filterSequence) == FilterAction.STOP) {
-                                    // stop chain of execution
-                                    return;
-                                }
+                        FilterChain filterChain = resolved.filterChain();
+                        FilterChain.Matches filterMatches = resolved.filterMatches();
+                        for (int i = filterMatches.nextFilter(0); i >= 0; i = filterMatches.nextFilter(i + 1)) {
+                            RequestContext filterContext = new ServerRequestContext(path, filterMatches.groups(i), filterChain.groupNames(i), dependencyManager, requestCache, routeMatch, attributes);
+                            if (handleFilterMatch(exchange, filterChain.entries[i], filterContext, request, response, filterSequence) == FilterAction.STOP) {
+                                // stop chain of execution
+                                return;
                             }
                         }
 
-                        handleEndPointMatch(exchange, route, request, response, params, attributes, requestCache, matcher, stats);
-                        // matched route
-                        return;
-                    }
-                }
+                        RequestContext endPointContext = new ServerRequestContext(path, routeMatch.groups, routeMatch.route.groupNames, dependencyManager, requestCache, routeMatch, attributes);
+                        handleEndPointMatch(exchange, routeMatch.route, endPointContext, request, response, stats);
+                    } finally {
+                        request.deleteTempFiles();
+                    }
+                    // matched route
+                    return;
+                }
+
+                // route unmatched
+                limitRequestBody(exchange, config.maxRequestBodySize);
+                sendErrorResponse(exchange, 404, "Not found");
+                stats.put("endpoint", "unmatched");
+                stats.put("status", 404);
+
+            } finally {
+                stats.put("path", path);
+                stats.put("duration", System.currentTimeMillis() - startTime);
+                recordStatistics(path, stats);
+            }
+        }
+
+        private static HttpMethods methodOf(String requestMethod) {
+            try {
+                HttpMethods method = HttpMethods.valueOf(requestMethod);
+                return method == HttpMethods.ALL ? null : method;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        private static String allowHeader(EnumSet<HttpMethods> allowed) {
+            StringBuilder allow = new StringBuilder();
+            for (HttpMethods method : allowed) {
+                allow.append(method).append(", ");
+            }
+            if (allowed.contains(HttpMethods.GET) && !allowed.contains(HttpMethods.HEAD)) {
+                allow.append(HttpMethods.HEAD).append(", ");
+            }
+            return allow.append(HttpMethods.OPTIONS).toString();
+        }
+
+        // the Host header, less any port, picks the table. Hosts not registered with host(..) get the default one
+        private RoutingTable routesFor(HttpExchange exchange) {
+            if (hostRoutes.isEmpty()) {
+                return routes;
+            }
+            String host = exchange.getRequestHeaders().getFirst("Host");
+            if (host == null) {
+                return routes;
+            }
+            int portColon = host.lastIndexOf(':');
+            if (portColon > 0 && host.indexOf(']', portColon) < 0) {
+                host = host.substring(0, portColon);
+            }
+            RoutingTable hostTable = hostRoutes.get(host.toLowerCase(Locale.ROOT));
+            return hostTable == null ? routes : hostTable;
+        }
+
+        private ResolvedRoute resolve(RoutingTable routes, HttpMethods method, String path) {
+            RouteKey key = routeCache == null ? null : new RouteKey(routes, method, path);
+            if (key != null) {
+                ResolvedRoute cached = routeCache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            RouteMatch routeMatch = routes.router.find(method, path);
+            if (routeMatch == null) {
+                return null;
+            }
+            FilterChain filterChain = routes.filterChains.get(method);
+            ResolvedRoute resolved = new ResolvedRoute(routeMatch.route, routeMatch.groups, filterChain, filterChain.match(path));
+            if (key != null) {
+                routeCache.put(key, resolved);
+            }
+            return resolved;
+        }
+
+        // False if the Content-Length is over the limit, decided before anything is read. Either way the body is
+        // counted as it's read, so a body of unknown length fails with a PayloadTooLargeException past the limit, and
+        // whatever the endPoint leaves unread is only drained that far. An oversized body is still read off up to
+        // MAX_SWALLOW, so that most clients get to see the 413 before the connection closes.
+        private static boolean limitRequestBody(HttpExchange exchange, long maxBodySize) {
+            if (maxBodySize == Long.MAX_VALUE) {
+                return true;
+            }
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            boolean within = true;
+            if (contentLength != null && !exchange.getRequestHeaders().containsKey("Transfer-Encoding")) {
+                try {
+                    within = Long.parseLong(contentLength.trim()) <= maxBodySize;
+                } catch (NumberFormatException e) {
+                    within = false;
+                }
+            }
+            exchange.setStreams(new LimitedInputStream(exchange.getRequestBody(), within ? maxBodySize : MAX_SWALLOW), null);
+            return within;
+        }
+
+        // A gzip or deflate body is inflated as the endPoint reads it, and the inflated bytes are limited too, as a
+        // few KB can inflate to gigabytes. False for any other coding.
+        private static boolean inflateRequestBody(HttpExchange exchange, long maxInflatedSize) {
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            if (encoding == null) {
+                return true;
+            }
+            encoding = encoding.trim().toLowerCase(Locale.ROOT);
+            switch (encoding) {
+                case "", "identity":
+                    return true;
+                case "gzip", "x-gzip", "deflate":
+                    exchange.setStreams(new InflatingInputStream(exchange.getRequestBody(), encoding, maxInflatedSize), null);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private static boolean isPayloadTooLarge(Throwable e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof PayloadTooLargeException) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void handleEndPointMatch(HttpExchange exchange, Route route, RequestContext ctx, Request request, Response response, Map<String, Object> stats) {
+            long endPointStartTime = System.currentTimeMillis();
+            try {
+                try {
+                    route.endPoint.handle(request, response, ctx);
+
+                    stats.put("endpoint", route.pattern.pattern());
+                    stats.put("status", response.exchange.getResponseCode());
+
+                } catch (Throwable e) {
+                    if (isPayloadTooLarge(e)) {
+                        stats.put("endpoint", route.pattern.pattern());
+                        stats.put("status", 413);
+                        sendErrorResponse(exchange, 413, "Payload too large");
+                        return;
+                    }
+                    stats.put("endpoint", route.pattern.pattern() + " -Exception");
+                    stats.put("status", 500);
+                    exceptionDuringHandling(e, exchange);
+                    return;
+                }
+            } catch (ServerException e) {
+                stats.put("endpoint", route.pattern.pattern() + " -ServerException");
+                stats.put("status", 500);
+
+                serverException(e);
+                sendErrorResponse(exchange, 500, "Internal server error: " + e.getMessage());
+                return;
+            } finally {
+                stats.put("endpointDuration", System.currentTimeMillis() - endPointStartTime);
+            }
+        }
+
+        private FilterAction handleFilterMatch(HttpExchange exchange, FilterEntry filterEntry, RequestContext ctx, Request request, Response response, List<FilterStat> filterSequence) {
+            long filterStartTime = System.currentTimeMillis();
+            try {
+                FilterAction result;
+                try {
+                    result = filterEntry.filter.filter(request, response, ctx);
+                    filterSequence.add(new FilterStat(filterEntry.pattern.pattern(), "ok", System.currentTimeMillis() - filterStartTime));
+                    return result;
+                } catch (Exception e) {
+                    filterSequence.add(new FilterStat(filterEntry.pattern.pattern(), "exception", System.currentTimeMillis() - filterStartTime));
+                    if (isPayloadTooLarge(e)) {
+                        sendErrorResponse(exchange, 413, "Payload too large");
+                    } else {
+                        exceptionDuringHandling(e, exchange);
+                    }
+                    return FilterAction.STOP;
+                }
+            } catch (ServerException e) {
+                filterSequence.add(new FilterStat(filterEntry.pattern.pattern(), "server-exception", System.currentTimeMillis() - filterStartTime));
+                serverException(e);
+                sendErrorResponse(exchange, 500, "Internal server error: " + e.getMessage());
+                return FilterAction.STOP;
+            }
+         }
+
+        protected HttpServer makeHttpServer() throws IOException {
+
+            HttpServer s = HttpServer.create();
+            s.setExecutor(Executors.newVirtualThreadPerTaskExecutor()); // Default executor
+
+            // Big unknown ...
+            // how to set timeouts on server/connections
+
+        //            try {
+        //                // The HttpServer implementation is typically wrapped in a delegate field
+        //                Field serverField = s.getClass().getDeclaredField("server");
+        //                serverField.setAccessible(true);
+        //                Object serverImpl = serverField.get(s);
+        //
+        //                // sun.net.httpserver.ServerImpl has a setIdleInterval(int seconds) or similar
+        //                Method setIdleIntervalMethod = serverImpl.getClass().getDeclaredMethod("setIdleInterval", int.class);
+        //                setIdleIntervalMethod.setAccessible(true);
+        //
+        //                // For example, set 10 seconds idle timeout
+        //                setIdleIntervalMethod.invoke(serverImpl, config.webIdleInterval);
+        //
+        //            } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | NoSuchFieldException e) {
+        //                throw new RuntimeException("Can't do reflection to set timeouts", e);
+        //            }
+
+            return s;
+        }
+
+        protected void recordStatistics(String path, Map<String, Object> stats) {
+            // This method is intentionally left empty for now.
+        }
+
+        protected void serverException(ServerException e) {
+        }
+
+        protected void webSocketTimeout(String pathLength, InetAddress inetAddress, SocketTimeoutException payload) {
+
+        }
+
+        protected void webSocketIoException(String pathLength, InetAddress inetAddress, IOException payload) {
+
+        }
+
+        /**
+         * Most likely a RuntimeException or Error in a endPoint() or filter() code block
+         */
+        protected void exceptionDuringHandling(Throwable e, HttpExchange exchange) {
+            sendErrorResponse(exchange, 500, "Server error");
+        }
+
+        public WebServer start() {
+            if (serverState.hasStarted()) {
+                throw new IllegalStateException("Server has already been started.");
+            }
+            // route table is frozen from here on, so compile it once, before binding the port
+            routes = registrations.toRoutingTable(config.linearTimeMatching);
+            hostRoutes = new HashMap<>();
+            for (Map.Entry<String, Registrations> host : hosts.entrySet()) {
+                hostRoutes.put(host.getKey(), host.getValue().toRoutingTable(config.linearTimeMatching));
+            }
+            webSocketRoutes = registrations.compiledWebSockets();
+            if (config.routeCacheSize > 0) {
+                routeCache = new BoundedCache<>(config.routeCacheSize);
+            }
+
+            try {
+                httpServer.bind(config.inetSocketAddress, config.webBacklog);
+            } catch (IOException e) {
+                throw new ServerException("Can't listen on port " + config.inetSocketAddress.getPort(), e);
+            }
+
+            httpServer.start();
+            serverState.start();
+            if (socketServer != null) {
+                simpleWebSocketServerThread = new Thread(socketServer::start);
+                simpleWebSocketServerThread.start();
+                //simpleWebSocketServerThread.setDaemon(true);
+            }
+            return this;
+        }
+
+        public long getRouteCacheHits() {
+            return routeCache == null ? 0 : routeCache.getHits();
+        }
+
+        public long getRouteCacheMisses() {
+            return routeCache == null ? 0 : routeCache.getMisses();
+        }
+
+        public WebServer stop() {
+            httpServer.stop(0);
+            serverState.stop();
+            if (simpleWebSocketServerThread != null) {
+                socketServer.stop();
+                simpleWebSocketServerThread.interrupt();
+            }
+            return this;
+        }
+
+        private static class ServerRequestContext implements RequestContext {
+
+            private static final int[] NO_GROUPS = new int[0];
+
+            private final String path;
+            private final int[] groups; // start/end offsets into path, pairs per capture group
+            private final Map<String, Integer> groupNames;
+            private final DependencyManager dependencyManager;
+            private final ComponentCache requestCache;
+            private final RouteMatch routeMatch;
+            private final Attributes attributes;
+
+            public ServerRequestContext(String path, int[] groups, Map<String, Integer> groupNames, DependencyManager dependencyManager, ComponentCache requestCache, RouteMatch routeMatch, Attributes attributes) {
+                this.path = path;
+                this.groups = groups == null ? NO_GROUPS : groups;
+                this.groupNames = groupNames == null ? Collections.emptyMap() : groupNames;
+                this.dependencyManager = dependencyManager;
+                this.requestCache = requestCache;
+                this.routeMatch = routeMatch;
+                this.attributes = attributes;
+            }
+
+            // params are by name - "id" for {id:long} or (?<id>..) - or by group number - "1", "2" etc.
+            private int groupIndex(String key) {
+                Integer named = groupNames.get(key);
+                if (named != null) {
+                    return named;
+                }
+                int index = 0;
+                for (int i = 0; i < key.length(); i++) {
+                    char c = key.charAt(i);
+                    if (c < '0' || c > '9' || i > 4) {
+                        return -1;
+                    }
+                    index = index * 10 + (c - '0');
+                }
+                return key.isEmpty() || index < 1 || index > groups.length / 2 ? -1 : index;
+            }
+
+            @Override
+            public String getParam(String key) {
+                int index = groupIndex(key);
+                if (index < 0 || groups[(index - 1) * 2] < 0) {
+                    return null;
+                }
+                return path.substring(groups[(index - 1) * 2], groups[(index - 1) * 2 + 1]);
+            }
+
+            @Override
+            public long getLongParam(String key) {
+                int index = groupIndex(key);
+                if (index < 0 || groups[(index - 1) * 2] < 0) {
+                    throw new NumberFormatException("No path parameter " + key);
+                }
+                int start = groups[(index - 1) * 2];
+                int end = groups[(index - 1) * 2 + 1];
+                if (start == end || path.charAt(start) < '0' || path.charAt(start) > '9') {
+                    // {id:long} and {id:int} are only ever digits - a sign, in some other capture group, is Long's to parse
+                    return Long.parseLong(path.substring(start, end));
+                }
+                long value = 0;
+                for (int i = start; i < end; i++) {
+                    int digit = path.charAt(i) - '0';
+                    if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                        throw new NumberFormatException("Not a long: " + path.substring(start, end));
+                    }
+                    value = value * 10 + digit;
+                }
+                return value;
+            }
+
+            @Override
+            public int getIntParam(String key) {
+                long value = getLongParam(key);
+                if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                    throw new NumberFormatException("Not an int: " + getParam(key));
+                }
+                return (int) value;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> T dep(Class<T> clazz) {
+                return dependencyManager.instantiateDep(clazz, requestCache, getMatcher());
+            }
+
+            public void setAttribute(String key, Object value) {
+                attributes.setAttribute(key, value);
+            }
+
+            public Object getAttribute(String key) {
+                return attributes.getAttribute(key);
+            }
+
+            public Matcher getMatcher() {
+                return routeMatch == null ? null : routeMatch.matcher();
+            }
+        }
+    }
+
+    public static class ServerComposition implements WebServerContext {
+        private final WebServerContext server;
+        protected final String rootPath;
+
+        public ServerComposition(WebServer server) {
+            this.server = server;
+            this.rootPath = null;
+        }
+
+        public ServerComposition(WebServer server, String rootPath) {
+            this.server = server;
+            this.rootPath = rootPath;
+        }
+
+        @Override
+        public PathContext path(String basePath, Runnable runnable) {
+            return server.path(basePath, runnable);
+        }
+
+        @Override
+        public WebServerContext host(String hostName, Runnable runnable) {
+            return server.host(hostName, runnable);
+        }
+
+        @Override
+        public void sendErrorResponse(HttpExchange exchange, int code, String message) {
+            server.sendErrorResponse(exchange, code, message);
+        }
+
+        @Override
+        public WebServerContext endPoint(HttpMethods method, String path, EndPoint endPoint) {
+            return server.endPoint(method, path, endPoint);
+        }
+
+        @Override
+        public WebServerContext endPoints(HttpMethods method, Map<String, EndPoint> pathsToEndPoints) {
+            return server.endPoints(method, pathsToEndPoints);
+        }
+
+        @Override
+        public WebServerContext webSocket(String path, WebSocketMessageHandler wsHandler) {
+            return server.webSocket(path, wsHandler);
+        }
+
+        @Override
+        public WebServerContext filter(HttpMethods method, String path, Filter filter) {
+            return server.filter(method, path, filter);
+        }
+
+        @Override
+        public WebServerContext filter(String path, Filter filter) {
+            return server.filter(path, filter);
+        }
+
+        @Override
+        public WebServerContext serveStaticFilesAsync(String basePath, String directory) {
+            return server.serveStaticFilesAsync(basePath, directory);
+        }
+    }
+
+    /* ==========================
+     * Routing Classes
+     * ==========================
+     */
+
+    public static class Route {
+        public final HttpMethods method;
+        public final Pattern pattern;
+        public final EndPoint endPoint;
+        public final int groupCount;
+        public final Map<String, Integer> groupNames;
+        public final long maxBodySize; // the endPoint's own limit, or -1 to go with Config's
+        public final boolean compressible;
+
+        public Route(HttpMethods method, Pattern pattern, EndPoint endPoint) {
+            this.method = method;
+            this.pattern = pattern;
+            this.endPoint = endPoint;
+            this.groupCount = pattern.matcher("").groupCount();
+            this.groupNames = pattern.namedGroups();
+            // BodyLimitedEndPoint and UncompressedEndPoint can wrap each other either way round
+            long maxBodySize = -1;
+            boolean compressible = true;
+            while (true) {
+                if (endPoint instanceof BodyLimitedEndPoint limited) {
+                    maxBodySize = maxBodySize < 0 ? limited.maxBodySize() : maxBodySize;
+                    endPoint = limited.endPoint();
+                } else if (endPoint instanceof UncompressedEndPoint uncompressed) {
+                    compressible = false;
+                    endPoint = uncompressed.endPoint();
+                } else {
+                    break;
+                }
+            }
+            this.maxBodySize = maxBodySize;
+            this.compressible = compressible;
+        }
+    }
+
+    // The compiled, frozen form of one set of endPoints and filters - the server's own or a virtual host's
+    public static class RoutingTable {
+        public final Router router;
+        public final Map<HttpMethods, FilterChain> filterChains = new EnumMap<>(HttpMethods.class);
+
+        public RoutingTable(Map<HttpMethods, Map<Pattern, EndPoint>> endPoints, Map<HttpMethods, List<FilterEntry>> filters) {
+            this(endPoints, filters, false);
+        }
+
+        public RoutingTable(Map<HttpMethods, Map<Pattern, EndPoint>> endPoints, Map<HttpMethods, List<FilterEntry>> filters, boolean linearTimeMatching) {
+            this.router = new Router(endPoints, linearTimeMatching);
+            // method-specific and 'all' filters merged, in the order they were defined
+            for (HttpMethods method : HttpMethods.values()) {
+                List<FilterEntry> methodFilters = new ArrayList<>(filters.get(method));
+                if (method != HttpMethods.ALL) {
+                    methodFilters.addAll(filters.get(HttpMethods.ALL));
+                }
+                methodFilters.sort(Comparator.comparingLong(FilterEntry::getWhenDefined));
+                filterChains.put(method, new FilterChain(methodFilters.toArray(new FilterEntry[0]), linearTimeMatching));
+            }
+        }
+    }
+
+    // what a (method, path) resolves to, minus anything specific to one request
+    public record ResolvedRoute(Route route, int[] groups, FilterChain filterChain, FilterChain.Matches filterMatches) {}
+
+    public static class RouteMatch {
+        public final Route route;
+        private final String path;
+        private final int[] groups; // start/end offsets into path, pairs per capture group, -1 if not participating
+        private final boolean linearTime;
+        private Matcher matcher;
+
+        public RouteMatch(Route route, String path, int[] groups) {
+            this(route, path, groups, false);
+        }
+
+        public RouteMatch(Route route, String path, int[] groups, boolean linearTime) {
+            this.route = route;
+            this.path = path;
+            this.groups = groups;
+            this.linearTime = linearTime;
+        }
+
+        public RouteMatch(Route route, String path, Matcher matcher) {
+            this(route, path, new int[matcher.groupCount() * 2], false);
+            this.matcher = matcher;
+            for (int i = 1; i <= matcher.groupCount(); i++) {
+                groups[(i - 1) * 2] = matcher.start(i);
+                groups[(i - 1) * 2 + 1] = matcher.end(i);
+            }
+        }
+
+        public int groupCount() {
+            return groups.length / 2;
+        }
+
+        public String group(int i) {
+            int start = groups[(i - 1) * 2];
+            return start < 0 ? null : path.substring(start, groups[(i - 1) * 2 + 1]);
+        }
+
+        // Routes matched by the trie never ran a regex, so only make a Matcher if someone asks for one.
+        // In linear-time mode there is none to be had - java.util.regex would backtrack on the very paths
+        // that mode is there to survive - so use group(..) instead
+        public Matcher matcher() {
+            if (matcher == null && !linearTime) {
+                matcher = route.pattern.matcher(path);
+                matcher.matches();
+            }
+            return matcher;
+        }
+    }
+
+    /**
+     * Segment trie built from the endPoint patterns when the server starts. Literal segments and the
+     * common capture segments ((\w+), (\d+), ([^/]+) and a trailing (.*)) are matched without regex. Any
+     * other pattern falls back to Pattern.matcher(..), or to LinearPattern in linear-time mode, tried in
+     * registration order after the trie. Precedence at each segment is literal, then (\d+), then (\w+), then ([^/]+), then trailing (.*).
+     */
+    public static class Router {
+
+        private enum Capture {
+            DIGITS("(\\d+)", "([0-9]+)"),
+            WORD("(\\w+)", "([a-zA-Z0-9_]+)", "([A-Za-z0-9_]+)"),
+            SEGMENT("([^/]+)");
+
+            private final String[] forms;
+
+            Capture(String... forms) {
+                this.forms = forms;
+            }
+
+            private boolean accepts(String path, int start, int end) {
+                if (start == end) {
+                    return false;
+                }
+                if (this == SEGMENT) {
+                    return true; // segment boundaries are already the slashes
+                }
+                for (int i = start; i < end; i++) {
+                    char c = path.charAt(i);
+                    boolean digit = c >= '0' && c <= '9';
+                    if (!(digit || (this == WORD && ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_')))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            private static Capture of(String segment) {
+                segment = withoutGroupName(segment);
+                for (Capture capture : values()) {
+                    for (String form : capture.forms) {
+                        if (form.equals(segment)) {
+                            return capture;
+                        }
+                    }
+                }
+                return null;
+            }
+        }
+
+        private static final String TAIL = "(.*)";
+        private static final String REGEX_CHARS = ".[]{}()*+?^$|\\";
+        private static final Pattern QUANTIFIER = Pattern.compile("\\d+(,\\d*)?");
+        private static final Pattern PARAM_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9]*");
+
+        private static class Node {
+            private Map<String, Node> literals;
+            private final Node[] captures = new Node[Capture.values().length];
+            private EnumMap<HttpMethods, Route> routes;
+            private EnumMap<HttpMethods, Route> tails;
+            // precomputed once the routes are in, for allowedMethods(..)
+            private EnumSet<HttpMethods> routeMethods;
+            private EnumSet<HttpMethods> tailMethods;
+        }
+
+        // one regex and every method that has an endPoint for it, so a miss runs each regex once, not once per method
+        private record RegexMethods(Route route, EnumSet<HttpMethods> methods) {}
+
+        private final Node root = new Node();
+        private final Map<HttpMethods, List<Route>> regexRoutes = new EnumMap<>(HttpMethods.class);
+        private final List<RegexMethods> regexMethods = new ArrayList<>();
+        private final Map<Route, LinearPattern> linearPatterns; // null unless in linear-time mode
+        private int maxCaptures;
+
+        public Router(Map<HttpMethods, Map<Pattern, EndPoint>> endPoints) {
+            this(endPoints, false);
+        }
+
+        public Router(Map<HttpMethods, Map<Pattern, EndPoint>> endPoints, boolean linearTimeMatching) {
+            this.linearPatterns = linearTimeMatching ? new HashMap<>() : null;
+            for (Map.Entry<HttpMethods, Map<Pattern, EndPoint>> methodEndPoints : endPoints.entrySet()) {
+                for (Map.Entry<Pattern, EndPoint> entry : methodEndPoints.getValue().entrySet()) {
+                    add(new Route(methodEndPoints.getKey(), entry.getKey(), entry.getValue()));
+                }
+            }
+            indexMethods(root);
+            Map<String, RegexMethods> byPattern = new LinkedHashMap<>();
+            for (List<Route> routes : regexRoutes.values()) {
+                for (Route route : routes) {
+                    if (route.method != HttpMethods.ALL) {
+                        byPattern.computeIfAbsent(route.pattern.pattern(), k -> new RegexMethods(route, EnumSet.noneOf(HttpMethods.class)))
+                                .methods().add(route.method);
+                    }
+                }
+            }
+            regexMethods.addAll(byPattern.values());
+        }
+
+        private static void indexMethods(Node node) {
+            node.routeMethods = methodsOf(node.routes);
+            node.tailMethods = methodsOf(node.tails);
+            if (node.literals != null) {
+                node.literals.values().forEach(Router::indexMethods);
+            }
+            for (Node child : node.captures) {
+                if (child != null) {
+                    indexMethods(child);
+                }
+            }
+        }
+
+        private static EnumSet<HttpMethods> methodsOf(EnumMap<HttpMethods, Route> routes) {
+            if (routes == null) {
+                return null;
+            }
+            EnumSet<HttpMethods> methods = EnumSet.copyOf(routes.keySet());
+            methods.remove(HttpMethods.ALL);
+            return methods.isEmpty() ? null : methods;
+        }
+
+        private void add(Route route) {
+            List<String> segments = segmentsOf(route.pattern.pattern());
+            if (segments == null || !addToTrie(route, segments)) {
+                if (linearPatterns != null) {
+                    linearPatterns.put(route, LinearPattern.forPattern(route.pattern, "endPoint"));
+                }
+                regexRoutes.computeIfAbsent(route.method, k -> new ArrayList<>()).add(route);
+            }
+        }
+
+        private boolean addToTrie(Route route, List<String> segments) {
+            // check everything first, so a rejected pattern leaves no half-built branch behind
+            int captureCount = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                String segment = segments.get(i);
+                if (Capture.of(segment) != null || (isTail(segment) && i == segments.size() - 1)) {
+                    captureCount++;
+                } else if (unescapeLiteral(segment) == null) {
+                    return false;
+                }
+            }
+            Node node = root;
+            for (int i = 0; i < segments.size(); i++) {
+                String segment = segments.get(i);
+                Capture capture = Capture.of(segment);
+                if (isTail(segment) && i == segments.size() - 1) {
+                    if (node.tails == null) {
+                        node.tails = new EnumMap<>(HttpMethods.class);
+                    }
+                    putOnce(node.tails, route);
+                    maxCaptures = Math.max(maxCaptures, captureCount);
+                    return true;
+                } else if (capture != null) {
+                    if (node.captures[capture.ordinal()] == null) {
+                        node.captures[capture.ordinal()] = new Node();
+                    }
+                    node = node.captures[capture.ordinal()];
+                } else {
+                    if (node.literals == null) {
+                        node.literals = new HashMap<>();
+                    }
+                    node = node.literals.computeIfAbsent(unescapeLiteral(segment), k -> new Node());
+                }
+            }
+            if (node.routes == null) {
+                node.routes = new EnumMap<>(HttpMethods.class);
+            }
+            putOnce(node.routes, route);
+            maxCaptures = Math.max(maxCaptures, captureCount);
+            return true;
+        }
+
+        // "/a/(\d+)" and "/a/([0-9]+)" land on the same node, and only one of them could ever be routed to
+        private static void putOnce(EnumMap<HttpMethods, Route> routes, Route route) {
+            Route existing = routes.putIfAbsent(route.method, route);
+            if (existing != null) {
+                throw new IllegalStateException("endPoint patterns " + existing.pattern.pattern() + " and "
+                        + route.pattern.pattern() + " for " + route.method + " match the same paths");
+            }
+        }
+
+        private static boolean isTail(String segment) {
+            return withoutGroupName(segment).equals(TAIL);
+        }
+
+        // "(?<id>\d+)" -> "(\d+)"
+        static String withoutGroupName(String group) {
+            if (group.startsWith("(?<") && group.length() > 3 && Character.isLetter(group.charAt(3))) {
+                int close = group.indexOf('>');
+                if (close > 0) {
+                    return "(" + group.substring(close + 1);
+                }
+            }
+            return group;
+        }
+
+        /**
+         * Expands {name} and {name:type} path parameters into named groups, so "/orders/{id:long}" becomes
+         * "/orders/(?<id>\d+)". Types are string (the default, one segment), word, int, long and path (the
+         * rest of the path, including slashes). Names are a letter then letters and digits, as Java's named groups
+         * are. A \d{4} or {2,3} quantifier is left alone, as is anything else in braces that doesn't start with a
+         * letter or digit.
+         */
+        public static String expandPathParams(String path) {
+            if (path.indexOf('{') < 0) {
+                return path;
+            }
+            StringBuilder sb = new StringBuilder(path.length() + 16);
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                int close = path.indexOf('}', i);
+                if (c == '\\' && i + 1 < path.length()) {
+                    sb.append(c).append(path.charAt(++i));
+                } else if (c == '{' && close > 0 && i + 1 < path.length() && Character.isLetterOrDigit(path.charAt(i + 1))
+                        && !QUANTIFIER.matcher(path.substring(i + 1, close)).matches()) {
+                    String param = path.substring(i + 1, close);
+                    int colon = param.indexOf(':');
+                    String name = colon < 0 ? param : param.substring(0, colon);
+                    String type = colon < 0 ? "string" : param.substring(colon + 1);
+                    if (!PARAM_NAME.matcher(name).matches()) {
+                        throw new IllegalArgumentException("Path parameter name '" + name + "' in " + path
+                                + " should be a letter then letters and digits");
+                    }
+                    String regex = switch (type) {
+                        case "string" -> "[^/]+";
+                        case "word" -> "\\w+";
+                        case "int", "long" -> "\\d+";
+                        case "path" -> ".*";
+                        default -> throw new IllegalArgumentException("Unknown path parameter type '" + type + "' in " + path);
+                    };
+                    sb.append("(?<").append(name).append('>').append(regex).append(')');
+                    i = close;
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        // "^/a/(\w+)/c$" -> ["a", "(\w+)", "c"], or null if it isn't anchored and slash-rooted
+        private static List<String> segmentsOf(String regex) {
+            if (!regex.startsWith("^/") || !regex.endsWith("$") || regex.endsWith("\\$")) {
+                return null;
+            }
+            String body = regex.substring(2, regex.length() - 1);
+            List<String> segments = new ArrayList<>();
+            int depth = 0;
+            int start = 0;
+            for (int i = 0; i < body.length(); i++) {
+                char c = body.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '(' || c == '[') {
+                    depth++;
+                } else if (c == ')' || c == ']') {
+                    depth--;
+                } else if (c == '/' && depth == 0) {
+                    segments.add(body.substring(start, i));
+                    start = i + 1;
+                }
+            }
+            segments.add(body.substring(start));
+            return segments;
+        }
+
+        // "file\.txt" -> "file.txt", or null if the segment has any regex meaning
+        private static String unescapeLiteral(String segment) {
+            StringBuilder sb = new StringBuilder(segment.length());
+            for (int i = 0; i < segment.length(); i++) {
+                char c = segment.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 == segment.length() || Character.isLetterOrDigit(segment.charAt(i + 1))) {
+                        return null;
+                    }
+                    c = segment.charAt(++i);
+                } else if (REGEX_CHARS.indexOf(c) >= 0) {
+                    return null;
+                }
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        public RouteMatch find(HttpMethods method, String path) {
+            if (path.startsWith("/")) {
+                int[] groups = new int[(maxCaptures + 1) * 2];
+                Route route = match(root, method, path, 1, groups, 0);
+                if (route != null) {
+                    return new RouteMatch(route, path, Arrays.copyOf(groups, route.groupCount * 2), linearPatterns != null);
+                }
+            }
+            List<Route> routes = regexRoutes.get(method);
+            if (routes != null) {
+                for (Route route : routes) {
+                    RouteMatch routeMatch = regexMatch(route, path);
+                    if (routeMatch != null) {
+                        return routeMatch;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private RouteMatch regexMatch(Route route, String path) {
+            if (linearPatterns != null) {
+                int[] groups = linearPatterns.get(route).match(path);
+                return groups == null ? null : new RouteMatch(route, path, groups, true);
+            }
+            Matcher matcher = route.pattern.matcher(path);
+            return matcher.matches() ? new RouteMatch(route, path, matcher) : null;
+        }
+
+        /**
+         * Every method that has an endPoint matching this path, for Allow headers, 405s and OPTIONS. The methods at
+         * each trie node, and for each distinct regex, are worked out when the Router is built, so a miss walks the
+         * trie once and tries each leftover regex once, skipping any that could add no new method.
+         */
+        public EnumSet<HttpMethods> allowedMethods(String path) {
+            EnumSet<HttpMethods> allowed = EnumSet.noneOf(HttpMethods.class);
+            if (path.startsWith("/")) {
+                collect(root, path, 1, allowed);
+            }
+            for (RegexMethods regex : regexMethods) {
+                if (!allowed.containsAll(regex.methods()) && regexMatch(regex.route(), path) != null) {
+                    allowed.addAll(regex.methods());
+                }
+            }
+            return allowed;
+        }
+
+        private void collect(Node node, String path, int start, EnumSet<HttpMethods> allowed) {
+            int end = path.indexOf('/', start);
+            boolean lastSegment = end < 0;
+            if (lastSegment) {
+                end = path.length();
+            }
+            Node literal = node.literals == null ? null : node.literals.get(path.substring(start, end));
+            if (literal != null) {
+                collectChild(literal, path, end, lastSegment, allowed);
+            }
+            for (Capture capture : Capture.values()) {
+                Node child = node.captures[capture.ordinal()];
+                if (child != null && capture.accepts(path, start, end)) {
+                    collectChild(child, path, end, lastSegment, allowed);
+                }
+            }
+            if (node.tailMethods != null && !hasLineTerminator(path, start)) {
+                allowed.addAll(node.tailMethods);
+            }
+        }
+
+        private void collectChild(Node child, String path, int end, boolean lastSegment, EnumSet<HttpMethods> allowed) {
+            if (!lastSegment) {
+                collect(child, path, end + 1, allowed);
+            } else if (child.routeMethods != null) {
+                allowed.addAll(child.routeMethods);
+            }
+        }
+
+        private Route match(Node node, HttpMethods method, String path, int start, int[] groups, int depth) {
+            int end = path.indexOf('/', start);
+            boolean lastSegment = end < 0;
+            if (lastSegment) {
+                end = path.length();
+            }
+            if (node.literals != null) {
+                Node child = node.literals.get(path.substring(start, end));
+                Route route = child == null ? null : matchChild(child, method, path, end, lastSegment, groups, depth);
+                if (route != null) {
+                    return route;
+                }
+            }
+            for (Capture capture : Capture.values()) {
+                Node child = node.captures[capture.ordinal()];
+                if (child != null && capture.accepts(path, start, end)) {
+                    groups[depth * 2] = start;
+                    groups[depth * 2 + 1] = end;
+                    Route route = matchChild(child, method, path, end, lastSegment, groups, depth + 1);
+                    if (route != null) {
+                        return route;
+                    }
+                }
+            }
+            if (node.tails != null) {
+                Route route = node.tails.get(method);
+                if (route != null && !hasLineTerminator(path, start)) {
+                    groups[depth * 2] = start;
+                    groups[depth * 2 + 1] = path.length();
+                    return route;
+                }
+            }
+            return null;
+        }
+
+        private Route matchChild(Node child, HttpMethods method, String path, int end, boolean lastSegment, int[] groups, int depth) {
+            if (lastSegment) {
+                return child.routes == null ? null : child.routes.get(method);
+            }
+            return match(child, method, path, end + 1, groups, depth);
+        }
+
+        // regex '.' doesn't match line terminators, and a decoded path could contain them
+        private static boolean hasLineTerminator(String path, int start) {
+            for (int i = start; i < path.length(); i++) {
+                if (isLineTerminator(path.charAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static boolean isLineTerminator(char c) {
+            return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+    }
+
+    /**
+     * The filters that apply to one HttpMethods value, in the order they run, with a character trie over each
+     * filter's literal prefix. One walk along the path finds every filter whose prefix matches. Exact paths and
+     * prefix + ".*" or "(.*)" filters are decided right there, and only the rest go on to Pattern.matcher(..),
+     * or to LinearPattern in linear-time mode.
+     */
+    public static class FilterChain {
+
+        private enum Kind { EXACT, ANY_TAIL, CAPTURE_TAIL, REGEX }
+
+        private static class Node {
+            private char[] chars = new char[0];
+            private Node[] children = new Node[0];
+            private int[] filters = new int[0];
+
+            private Node child(char c) {
+                for (int i = 0; i < chars.length; i++) {
+                    if (chars[i] == c) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+
+            private Node addChild(char c) {
+                Node child = child(c);
+                if (child == null) {
+                    child = new Node();
+                    chars = Arrays.copyOf(chars, chars.length + 1);
+                    children = Arrays.copyOf(children, children.length + 1);
+                    chars[chars.length - 1] = c;
+                    children[children.length - 1] = child;
+                }
+                return child;
+            }
+        }
+
+        public static class Matches {
+            private final BitSet applies;
+            private final int[][] groups; // start/end offsets into the path, per filter
+
+            private Matches(int size) {
+                this.applies = new BitSet(size);
+                this.groups = new int[size][];
+            }
+
+            public int nextFilter(int from) {
+                return applies.nextSetBit(from);
+            }
+
+            public int[] groups(int filter) {
+                return groups[filter];
+            }
+        }
+
+        private static final int[] NO_GROUPS = new int[0];
+        private static final Matches NONE = new Matches(0);
+
+        public final FilterEntry[] entries;
+        private final Kind[] kinds;
+        private final List<Map<String, Integer>> groupNames;
+        private final LinearPattern[] linearPatterns;
+        private final Node root = new Node();
+
+        public FilterChain(FilterEntry[] entries) {
+            this(entries, false);
+        }
+
+        public FilterChain(FilterEntry[] entries, boolean linearTimeMatching) {
+            this.entries = entries;
+            this.kinds = new Kind[entries.length];
+            this.linearPatterns = new LinearPattern[entries.length];
+            this.groupNames = new ArrayList<>(entries.length);
+            for (int i = 0; i < entries.length; i++) {
+                groupNames.add(entries[i].pattern.namedGroups());
+                String prefix = literalPrefix(entries[i].pattern);
+                String rest = prefix == null ? null : entries[i].pattern.pattern().substring(1 + rawLength(entries[i].pattern.pattern(), prefix.length()));
+                if (prefix == null) {
+                    prefix = "";
+                    kinds[i] = Kind.REGEX;
+                } else if (rest.equals("$")) {
+                    kinds[i] = Kind.EXACT;
+                } else if (rest.equals(".*$")) {
+                    kinds[i] = Kind.ANY_TAIL;
+                } else if (Router.withoutGroupName(rest).equals("(.*)$")) {
+                    kinds[i] = Kind.CAPTURE_TAIL;
+                } else {
+                    kinds[i] = Kind.REGEX;
+                }
+                if (kinds[i] == Kind.REGEX && linearTimeMatching) {
+                    linearPatterns[i] = LinearPattern.forPattern(entries[i].pattern, "filter");
+                }
+                Node node = root;
+                for (int c = 0; c < prefix.length(); c++) {
+                    node = node.addChild(prefix.charAt(c));
+                }
+                node.filters = Arrays.copyOf(node.filters, node.filters.length + 1);
+                node.filters[node.filters.length - 1] = i;
+            }
+        }
+
+        public Matches match(String path) {
+            if (entries.length == 0) {
+                return NONE;
+            }
+            Matches matches = new Matches(entries.length);
+            int lastLineTerminator = -1;
+            for (int i = 0; i < path.length(); i++) {
+                if (Router.isLineTerminator(path.charAt(i))) {
+                    lastLineTerminator = i;
+                }
+            }
+            Node node = root;
+            int pos = 0;
+            while (node != null) {
+                for (int filter : node.filters) {
+                    switch (kinds[filter]) {
+                        case EXACT -> {
+                            if (pos == path.length()) {
+                                matches.applies.set(filter);
+                                matches.groups[filter] = NO_GROUPS;
+                            }
+                        }
+                        case ANY_TAIL, CAPTURE_TAIL -> {
+                            // regex '.' doesn't match line terminators
+                            if (lastLineTerminator < pos) {
+                                matches.applies.set(filter);
+                                matches.groups[filter] = kinds[filter] == Kind.ANY_TAIL ? NO_GROUPS : new int[] {pos, path.length()};
+                            }
+                        }
+                        case REGEX -> {
+                            if (linearPatterns[filter] != null) {
+                                int[] groups = linearPatterns[filter].match(path);
+                                if (groups != null) {
+                                    matches.applies.set(filter);
+                                    matches.groups[filter] = groups;
+                                }
+                                continue;
+                            }
+                            Matcher matcher = entries[filter].pattern.matcher(path);
+                            if (matcher.matches()) {
+                                int[] groups = new int[matcher.groupCount() * 2];
+                                for (int g = 1; g <= matcher.groupCount(); g++) {
+                                    groups[(g - 1) * 2] = matcher.start(g);
+                                    groups[(g - 1) * 2 + 1] = matcher.end(g);
+                                }
+                                matches.applies.set(filter);
+                                matches.groups[filter] = groups;
+                            }
+                        }
+                    }
+                }
+                node = pos < path.length() ? node.child(path.charAt(pos++)) : null;
+            }
+            return matches;
+        }
+
+        public Map<String, Integer> groupNames(int filter) {
+            return groupNames.get(filter);
+        }
+
+        // The unescaped literal text at the start of a "^...$" pattern, stopping short of any
+        // character a quantifier applies to. Null if the pattern can't be treated that way.
+        private static String literalPrefix(Pattern pattern) {
+            String regex = pattern.pattern();
+            if (pattern.flags() != 0 || !regex.startsWith("^") || !regex.endsWith("$") || regex.endsWith("\\$")) {
+                return null;
+            }
+            for (int i = 0; i < regex.length(); i++) {
+                if (regex.charAt(i) == '\\') {
+                    i++;
+                } else if (regex.charAt(i) == '|') {
+                    return null;
+                }
+            }
+            StringBuilder prefix = new StringBuilder();
+            for (int i = 1; i < regex.length() - 1; i++) {
+                char c = regex.charAt(i);
+                boolean escaped = c == '\\';
+                if (escaped) {
+                    if (Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        break;
+                    }
+                    c = regex.charAt(i + 1);
+                } else if (".[]{}()*+?^$".indexOf(c) >= 0) {
+                    break;
+                }
+                int next = i + (escaped ? 2 : 1);
+                if (next < regex.length() && "*+?{".indexOf(regex.charAt(next)) >= 0) {
+                    break;
+                }
+                prefix.append(c);
+                i = next - 1;
+            }
+            return prefix.toString();
+        }
+
+        // how many characters of the regex (after the '^') spell out the first 'literals' literal characters
+        private static int rawLength(String regex, int literals) {
+            int i = 1;
+            for (int n = 0; n < literals; n++) {
+                i += regex.charAt(i) == '\\' ? 2 : 1;
+            }
+            return i - 1;
+        }
+    }
+
+    /**
+     * A regex engine for the subset of java.util.regex that path patterns need: literals, '.', character classes,
+     * \d \w \s and their negations, capturing, named and non-capturing groups, alternation, greedy and lazy
+     * quantifiers, and ^ $ anchors. It compiles to a Thompson NFA that is run as a Pike VM, so a match
+     * takes time proportional to path length times pattern size, whatever the path. Captures are the same as
+     * Matcher.matches() would give. Backreferences, lookaround, possessive quantifiers, atomic groups, flags and
+     * the like can't be done in linear time, so compile(..) refuses them with an IllegalArgumentException.
+     * Characters are matched as UTF-16 chars, not code points.
+     */
+    public static class LinearPattern {
+
+        private static final int CHAR = 0, ANY = 1, CLASS = 2, SPLIT = 3, JMP = 4, SAVE = 5, BOL = 6, EOL = 7, MATCH = 8;
+        private static final int MAX_PROGRAM_SIZE = 5000;
+
+        private static class CharClass {
+            private final StringBuilder ranges = new StringBuilder(); // lo, hi pairs
+            private final boolean negated;
+
+            private CharClass(boolean negated) {
+                this.negated = negated;
+            }
+
+            private CharClass range(char lo, char hi) {
+                ranges.append(lo).append(hi);
+                return this;
+            }
+
+            private boolean matches(char c) {
+                for (int i = 0; i < ranges.length(); i += 2) {
+                    if (c >= ranges.charAt(i) && c <= ranges.charAt(i + 1)) {
+                        return !negated;
+                    }
+                }
+                return negated;
+            }
+        }
+
+        // regex AST, before code generation
+        private static class Node {
+            private final int op; // CHAR, ANY, CLASS, BOL or EOL, or one of the below
+            private char c;
+            private CharClass charClass;
+            private List<Node> nodes = new ArrayList<>();
+            private int group = -1;
+            private int min, max;
+            private boolean greedy;
+
+            private Node(int op) {
+                this.op = op;
+            }
+        }
+
+        private static final int CAT = 10, ALT = 11, GROUP = 12, REPEAT = 13;
+
+        private final String regex;
+        private int pos;
+        private int groupCount;
+        private int[] ops = new int[16];
+        private int[] xs = new int[16];
+        private int[] ys = new int[16];
+        private CharClass[] classes = new CharClass[16];
+        private int size;
+
+        private LinearPattern(String regex) {
+            this.regex = regex;
+        }
+
+        public static LinearPattern compile(Pattern pattern) {
+            if (pattern.flags() != 0) {
+                throw new IllegalArgumentException("flags are not supported");
+            }
+            LinearPattern linear = new LinearPattern(pattern.pattern());
+            Node root = linear.parseAlternation();
+            if (linear.pos < linear.regex.length()) {
+                throw linear.unsupported("unbalanced ')'");
+            }
+            linear.emit(root);
+            linear.add(MATCH, 0, 0, null);
+            return linear;
+        }
+
+        // for start(): a pattern that can't be matched in linear time stops the server from starting
+        static LinearPattern forPattern(Pattern pattern, String kind) {
+            try {
+                return compile(pattern);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException(kind + " pattern " + pattern.pattern() + " can't be matched in linear time: " + e.getMessage());
+            }
+        }
+
+        public int groupCount() {
+            return groupCount;
+        }
+
+        /**
+         * Like Matcher.matches(), returning start/end offsets for each capture group (-1 when a group didn't
+         * participate), or null if the whole of the input doesn't match.
+         */
+        public int[] match(String input) {
+            int[] clistPcs = new int[size];
+            int[][] clistCaps = new int[size][];
+            int[] nlistPcs = new int[size];
+            int[][] nlistCaps = new int[size][];
+            int[] marks = new int[size];
+            int[] counts = new int[2];
+            int mark = 1;
+            int[] noCaps = new int[groupCount * 2];
+            Arrays.fill(noCaps, -1);
+            addThread(clistPcs, clistCaps, counts, 0, marks, mark, 0, noCaps, 0, input.length());
+            for (int at = 0; at <= input.length() && counts[0] > 0; at++) {
+                char c = at < input.length() ? input.charAt(at) : 0;
+                mark++;
+                counts[1] = 0;
+                for (int t = 0; t < counts[0]; t++) {
+                    int pc = clistPcs[t];
+                    int[] caps = clistCaps[t];
+                    boolean step = false;
+                    switch (ops[pc]) {
+                        case MATCH -> {
+                            if (at == input.length()) {
+                                return caps; // highest priority thread to match the whole input
+                            }
+                        }
+                        case CHAR -> step = at < input.length() && c == xs[pc];
+                        case ANY -> step = at < input.length() && !Router.isLineTerminator(c);
+                        case CLASS -> step = at < input.length() && classes[pc].matches(c);
+                        default -> throw new IllegalStateException("unexpected op " + ops[pc]);
+                    }
+                    if (step) {
+                        addThread(nlistPcs, nlistCaps, counts, 1, marks, mark, pc + 1, caps, at + 1, input.length());
+                    }
+                }
+                int[] swapPcs = clistPcs;
+                clistPcs = nlistPcs;
+                nlistPcs = swapPcs;
+                int[][] swapCaps = clistCaps;
+                clistCaps = nlistCaps;
+                nlistCaps = swapCaps;
+                counts[0] = counts[1];
+            }
+            return null;
+        }
+
+        // follows JMP, SPLIT, SAVE and the anchors right away, so lists only hold threads waiting on a char or a MATCH
+        private void addThread(int[] pcs, int[][] capsList, int[] counts, int list, int[] marks, int mark, int pc, int[] caps, int at, int length) {
+            if (marks[pc] == mark) {
+                return;
+            }
+            marks[pc] = mark;
+            switch (ops[pc]) {
+                case JMP -> addThread(pcs, capsList, counts, list, marks, mark, xs[pc], caps, at, length);
+                case SPLIT -> {
+                    addThread(pcs, capsList, counts, list, marks, mark, xs[pc], caps, at, length);
+                    addThread(pcs, capsList, counts, list, marks, mark, ys[pc], caps, at, length);
+                }
+                case SAVE -> {
+                    int[] saved = caps.clone();
+                    saved[xs[pc]] = at;
+                    addThread(pcs, capsList, counts, list, marks, mark, pc + 1, saved, at, length);
+                }
+                case BOL -> {
+                    if (at == 0) {
+                        addThread(pcs, capsList, counts, list, marks, mark, pc + 1, caps, at, length);
+                    }
+                }
+                case EOL -> {
+                    if (at == length) {
+                        addThread(pcs, capsList, counts, list, marks, mark, pc + 1, caps, at, length);
+                    }
+                }
+                default -> {
+                    pcs[counts[list]] = pc;
+                    capsList[counts[list]++] = caps;
+                }
+            }
+        }
+
+        private IllegalArgumentException unsupported(String what) {
+            return new IllegalArgumentException(what + " at index " + pos);
+        }
+
+        private boolean more() {
+            return pos < regex.length();
+        }
+
+        private Node parseAlternation() {
+            Node first = parseConcatenation();
+            if (!more() || regex.charAt(pos) != '|') {
+                return first;
+            }
+            Node alt = new Node(ALT);
+            alt.nodes.add(first);
+            while (more() && regex.charAt(pos) == '|') {
+                pos++;
+                alt.nodes.add(parseConcatenation());
+            }
+            return alt;
+        }
+
+        private Node parseConcatenation() {
+            Node cat = new Node(CAT);
+            while (more() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+                cat.nodes.add(parseRepetition());
+            }
+            return cat;
+        }
+
+        private Node parseRepetition() {
+            Node atom = parseAtom();
+            if (!more()) {
+                return atom;
+            }
+            int min, max;
+            char q = regex.charAt(pos);
+            if (q == '*') {
+                min = 0;
+                max = -1;
+            } else if (q == '+') {
+                min = 1;
+                max = -1;
+            } else if (q == '?') {
+                min = 0;
+                max = 1;
+            } else if (q == '{') {
+                int close = regex.indexOf('}', pos);
+                if (close < 0) {
+                    throw unsupported("unclosed repetition");
+                }
+                String[] bounds = regex.substring(pos + 1, close).split(",", -1);
+                try {
+                    min = Integer.parseInt(bounds[0]);
+                    max = bounds.length == 1 ? min : bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1]);
+                } catch (NumberFormatException e) {
+                    throw unsupported("illegal repetition");
+                }
+                if (bounds.length > 2 || min > 100 || max > 100 || (max >= 0 && max < min)) {
+                    throw unsupported("illegal or too large repetition");
+                }
+                pos = close;
+            } else {
+                return atom;
+            }
+            pos++;
+            if (atom.op == BOL || atom.op == EOL) {
+                throw unsupported("repeated anchor");
+            }
+            if (max < 0 && canMatchEmpty(atom) && hasGroup(atom)) {
+                // backtracking takes one more, empty, iteration here, so captures would differ from java.util.regex
+                throw unsupported("unbounded repetition of a capture that can match empty");
+            }
+            Node repeat = new Node(REPEAT);
+            repeat.nodes.add(atom);
+            repeat.min = min;
+            repeat.max = max;
+            repeat.greedy = true;
+            if (more() && regex.charAt(pos) == '?') {
+                repeat.greedy = false;
+                pos++;
+            } else if (more() && (regex.charAt(pos) == '+' || regex.charAt(pos) == '*' || regex.charAt(pos) == '{')) {
+                throw unsupported("possessive or stacked quantifier");
+            }
+            return repeat;
+        }
+
+        private static boolean canMatchEmpty(Node node) {
+            return switch (node.op) {
+                case CHAR, ANY, CLASS -> false;
+                case ALT -> node.nodes.stream().anyMatch(LinearPattern::canMatchEmpty);
+                case REPEAT -> node.min == 0 || canMatchEmpty(node.nodes.get(0));
+                default -> node.nodes.stream().allMatch(LinearPattern::canMatchEmpty);
+            };
+        }
+
+        private static boolean hasGroup(Node node) {
+            return node.group > 0 || node.nodes.stream().anyMatch(LinearPattern::hasGroup);
+        }
+
+        private Node parseAtom() {
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case '(' -> {
+                    Node group = new Node(GROUP);
+                    if (regex.startsWith("?:", pos)) {
+                        pos += 2;
+                    } else if (regex.startsWith("?<", pos) && pos + 2 < regex.length() && Character.isLetter(regex.charAt(pos + 2))) {
+                        pos = regex.indexOf('>', pos) + 1;
+                        group.group = ++groupCount;
+                    } else if (more() && regex.charAt(pos) == '?') {
+                        throw unsupported("lookaround, atomic group or inline flag");
+                    } else {
+                        group.group = ++groupCount;
+                    }
+                    group.nodes.add(parseAlternation());
+                    if (!more() || regex.charAt(pos) != ')') {
+                        throw unsupported("unclosed group");
+                    }
+                    pos++;
+                    return group;
+                }
+                case '[' -> {
+                    return classNode(parseClass());
+                }
+                case '.' -> {
+                    return new Node(ANY);
+                }
+                case '^' -> {
+                    return new Node(BOL);
+                }
+                case '$' -> {
+                    return new Node(EOL);
+                }
+                case '\\' -> {
+                    return parseEscape();
+                }
+                case '*', '+', '?', '{', ')' -> {
+                    pos--;
+                    throw unsupported("dangling '" + c + "'");
+                }
+                default -> {
+                    return charNode(c);
+                }
+            }
+        }
+
+        private Node parseEscape() {
+            if (!more()) {
+                throw unsupported("trailing backslash");
+            }
+            char c = regex.charAt(pos++);
+            CharClass predefined = predefined(c);
+            if (predefined != null) {
+                return classNode(predefined);
+            }
+            return charNode(escapedChar(c));
+        }
+
+        private CharClass predefined(char c) {
+            return switch (c) {
+                case 'd', 'D' -> new CharClass(c == 'D').range('0', '9');
+                case 'w', 'W' -> new CharClass(c == 'W').range('a', 'z').range('A', 'Z').range('0', '9').range('_', '_');
+                case 's', 'S' -> new CharClass(c == 'S').range(' ', ' ').range('\t', '\r');
+                default -> null;
+            };
+        }
+
+        private char escapedChar(char c) {
+            switch (c) {
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 'f': return '\f';
+                case 'a': return '\u0007';
+                case 'e': return '\u001B';
+                case 'x':
+                    return hex(2);
+                case 'u':
+                    return hex(4);
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        pos--;
+                        throw unsupported("escape \\" + c);
+                    }
+                    return c;
+            }
+        }
+
+        private char hex(int digits) {
+            if (pos + digits > regex.length()) {
+                throw unsupported("short hex escape");
+            }
+            try {
+                char c = (char) Integer.parseInt(regex.substring(pos, pos + digits), 16);
+                pos += digits;
+                return c;
+            } catch (NumberFormatException e) {
+                throw unsupported("bad hex escape");
+            }
+        }
+
+        private CharClass parseClass() {
+            boolean negated = more() && regex.charAt(pos) == '^';
+            if (negated) {
+                pos++;
+            }
+            CharClass charClass = new CharClass(negated);
+            if (more() && regex.charAt(pos) == ']') {
+                throw unsupported("empty character class");
+            }
+            while (more() && regex.charAt(pos) != ']') {
+                if (regex.charAt(pos) == '[' || regex.startsWith("&&", pos)) {
+                    throw unsupported("nested or intersected character class");
+                }
+                char lo = regex.charAt(pos++);
+                if (lo == '\\') {
+                    if (!more()) {
+                        throw unsupported("trailing backslash");
+                    }
+                    char e = regex.charAt(pos++);
+                    CharClass predefined = predefined(e);
+                    if (predefined != null) {
+                        if (predefined.negated) {
+                            throw unsupported("negated class inside a character class");
+                        }
+                        charClass.ranges.append(predefined.ranges);
+                        continue;
+                    }
+                    lo = escapedChar(e);
+                }
+                char hi = lo;
+                if (pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    hi = regex.charAt(pos++);
+                    if (hi == '\\') {
+                        if (!more() || predefined(regex.charAt(pos)) != null) {
+                            throw unsupported("bad range");
+                        }
+                        hi = escapedChar(regex.charAt(pos++));
+                    }
+                    if (hi < lo) {
+                        throw unsupported("bad range");
+                    }
+                }
+                charClass.range(lo, hi);
+            }
+            if (!more()) {
+                throw unsupported("unclosed character class");
+            }
+            pos++;
+            return charClass;
+        }
+
+        private static Node charNode(char c) {
+            Node node = new Node(CHAR);
+            node.c = c;
+            return node;
+        }
+
+        private static Node classNode(CharClass charClass) {
+            Node node = new Node(CLASS);
+            node.charClass = charClass;
+            return node;
+        }
+
+        private int add(int op, int x, int y, CharClass charClass) {
+            if (size == MAX_PROGRAM_SIZE) {
+                throw new IllegalArgumentException("pattern too large");
+            }
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+                classes = Arrays.copyOf(classes, size * 2);
+            }
+            ops[size] = op;
+            xs[size] = x;
+            ys[size] = y;
+            classes[size] = charClass;
+            return size++;
+        }
+
+        private void emit(Node node) {
+            switch (node.op) {
+                case CHAR -> add(CHAR, node.c, 0, null);
+                case ANY, BOL, EOL -> add(node.op, 0, 0, null);
+                case CLASS -> add(CLASS, 0, 0, node.charClass);
+                case CAT -> node.nodes.forEach(this::emit);
+                case ALT -> {
+                    List<Integer> jumps = new ArrayList<>();
+                    for (int i = 0; i < node.nodes.size() - 1; i++) {
+                        int split = add(SPLIT, size + 1, 0, null);
+                        emit(node.nodes.get(i));
+                        jumps.add(add(JMP, 0, 0, null));
+                        ys[split] = size;
+                    }
+                    emit(node.nodes.get(node.nodes.size() - 1));
+                    jumps.forEach(jump -> xs[jump] = size);
+                }
+                case GROUP -> {
+                    if (node.group > 0) {
+                        add(SAVE, (node.group - 1) * 2, 0, null);
+                    }
+                    emit(node.nodes.get(0));
+                    if (node.group > 0) {
+                        add(SAVE, (node.group - 1) * 2 + 1, 0, null);
+                    }
+                }
+                case REPEAT -> {
+                    Node body = node.nodes.get(0);
+                    for (int i = 0; i < node.min; i++) {
+                        emit(body);
+                    }
+                    if (node.max < 0) {
+                        int split = add(SPLIT, 0, 0, null);
+                        emit(body);
+                        add(JMP, split, 0, null);
+                        preferring(split, split + 1, size, node.greedy);
+                    } else {
+                        List<Integer> splits = new ArrayList<>();
+                        for (int i = node.min; i < node.max; i++) {
+                            splits.add(add(SPLIT, 0, 0, null));
+                            emit(body);
+                        }
+                        splits.forEach(split -> preferring(split, split + 1, size, node.greedy));
+                    }
+                }
+                default -> throw new IllegalStateException("unexpected node " + node.op);
+            }
+        }
+
+        private void preferring(int split, int body, int skip, boolean greedy) {
+            xs[split] = greedy ? body : skip;
+            ys[split] = greedy ? skip : body;
+        }
+    }
+
+
+    /* ==========================
+     * Supporting Classes
+     * ==========================
+     */
+    public static class FilterEntry {
+        public final Pattern pattern;
+        public final Filter filter;
+        public final long whenDefined;
+
+        public FilterEntry(Pattern pattern, Filter filter) {
+            this(pattern, filter, System.nanoTime());
+        }
+
+        public FilterEntry(Pattern pattern, Filter filter, long whenDefined) {
+            this.pattern = pattern;
+            this.filter = filter;
+            this.whenDefined = whenDefined;
+        }
+
+        public long getWhenDefined() {
+            return whenDefined;
+        }
+    }
+
+    /**
+     * Nothing is read from the request body until a handler asks for it, and then only once. Use getBodyStream()
+     * to consume a large body without holding it in memory, or getBodyBytes(), getBodyBuffer() or getBody() to have
+     * it read fully - those three share the one copy. The stream can't be had after the body has been read fully,
+     * nor the other way round.
+     */
+    public static class Request {
+        private final HttpExchange exchange;
+        private byte[] bodyBytes;
+        private String body;
+        private boolean bodyStreamed;
+
+        private Params queryParams;
+        private Params formParams;
+        private Map<String, String> cookies;
+        private final int multipartSpillThreshold;
+        private MultipartReader multipart;
+        private JsonReader json;
+
+        public Request(HttpExchange exchange) {
+            this(exchange, Config.create());
+        }
+
+        public Request(HttpExchange exchange, Config config) {
+            this.exchange = exchange;
+            this.multipartSpillThreshold = config.multipartSpillThreshold;
+        }
+
+        public InputStream getBodyStream() {
+            if (exchange == null) {
+                return InputStream.nullInputStream();
+            }
+            if (bodyBytes != null) {
+                throw new IllegalStateException("Request body has already been read");
+            }
+            bodyStreamed = true;
+            return exchange.getRequestBody();
+        }
+
+        public byte[] getBodyBytes() {
+            if (bodyBytes == null && exchange != null) {
+                if (bodyStreamed) {
+                    throw new IllegalStateException("Request body has already been read as a stream");
+                }
+                try {
+                    bodyBytes = exchange.getRequestBody().readAllBytes();
+                } catch (IOException e) {
+                    throw new ServerException("Internal request error, for " + exchange.getRequestURI(), e);
+                }
+            }
+            return bodyBytes;
+        }
+
+        public ByteBuffer getBodyBuffer() {
+            byte[] bytes = getBodyBytes();
+            return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+
+        // decoded with the Content-Type's charset, or UTF-8 if it doesn't name one
+        public String getBody() {
+            if (body == null && getBodyBytes() != null) {
+                body = new String(bodyBytes, getCharset());
+            }
+            return body;
+        }
+
+        public Charset getCharset() {
+            String contentType = exchange == null ? null : exchange.getRequestHeaders().getFirst("Content-Type");
+            return charsetOf(contentType);
+        }
+
+        // the body as JSON, parsed from the stream as the endpoint pulls on it
+        public JsonReader json() {
+            if (json == null) {
+                json = new JsonReader(getBodyStream());
+            }
+            return json;
+        }
+
+        // a multipart/form-data body, read a part at a time as the endpoint asks for them
+        public MultipartReader getMultipart() {
+            if (multipart != null) {
+                return multipart;
+            }
+            String contentType = exchange == null ? null : exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType == null || !contentType.trim().regionMatches(true, 0, "multipart/form-data", 0, 19)) {
+                throw new IllegalStateException("Request body is not multipart/form-data");
+            }
+            String boundary = headerParameter(contentType, "boundary");
+            if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+                throw new IllegalStateException("multipart/form-data request without a valid boundary");
+            }
+            multipart = new MultipartReader(getBodyStream(), boundary, multipartSpillThreshold);
+            return multipart;
+        }
+
+        // spilled multipart parts that weren't moved elsewhere. The server calls this when the endpoint returns
+        public void deleteTempFiles() {
+            if (multipart != null) {
+                multipart.close();
+            }
+        }
+
+        static Charset charsetOf(String contentType) {
+            String name = headerParameter(contentType, "charset");
+            if (name != null) {
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalArgumentException e) {
+                    // unknown or illegal charset name
+                }
+            }
+            return StandardCharsets.UTF_8;
+        }
+
+        // a parameter of a header value like 'form-data; name="field"; filename="a.txt"', unquoted, or null if absent
+        static String headerParameter(String headerValue, String name) {
+            if (headerValue == null) {
+                return null;
+            }
+            int i = headerValue.indexOf(';');
+            while (i >= 0 && i < headerValue.length()) {
+                int eq = headerValue.indexOf('=', i + 1);
+                if (eq < 0) {
+                    return null;
+                }
+                String key = headerValue.substring(i + 1, eq).trim();
+                StringBuilder value = new StringBuilder();
+                boolean quoted = false;
+                int j = eq + 1;
+                while (j < headerValue.length() && headerValue.charAt(j) == ' ') {
+                    j++;
+                }
+                if (j < headerValue.length() && headerValue.charAt(j) == '"') {
+                    quoted = true;
+                    for (j++; j < headerValue.length() && headerValue.charAt(j) != '"'; j++) {
+                        char c = headerValue.charAt(j);
+                        if (c == '\\' && j + 1 < headerValue.length()) {
+                            c = headerValue.charAt(++j);
+                        }
+                        value.append(c);
+                    }
+                    j = headerValue.indexOf(';', j);
+                } else {
+                    int end = headerValue.indexOf(';', j);
+                    value.append(headerValue, j, end < 0 ? headerValue.length() : end);
+                    j = end;
+                }
+                if (key.equalsIgnoreCase(name)) {
+                    return quoted ? value.toString() : value.toString().trim();
+                }
+                i = j;
+            }
+            return null;
+        }
+
+        public String getCookie(String name) {
+            return getCookies().get(name);
+        }
+
+        // every cookie sent, parsed on first use. Where a name repeats, the first one wins
+        public Map<String, String> getCookies() {
+            if (cookies == null) {
+                List<String> cookieHeaders = exchange == null ? null : exchange.getRequestHeaders().get("Cookie");
+                if (cookieHeaders == null) {
+                    cookies = Collections.emptyMap();
+                } else {
+                    Map<String, String> parsed = new LinkedHashMap<>();
+                    for (String header : cookieHeaders) {
+                        int start = 0;
+                        while (start < header.length()) {
+                            int end = header.indexOf(';', start);
+                            if (end < 0) {
+                                end = header.length();
+                            }
+                            int eq = header.indexOf('=', start);
+                            if (eq > start && eq < end) {
+                                parsed.putIfAbsent(header.substring(start, eq).trim(), header.substring(eq + 1, end).trim());
+                            }
+                            start = end + 1;
+                        }
+                    }
+                    cookies = Collections.unmodifiableMap(parsed);
+                }
+            }
+            return cookies;
+        }
+
+        public Map<String, List<String>> getHeaders() { return exchange.getRequestHeaders(); }
+        public String getPath() { return exchange.getRequestURI().getPath(); }
+        public String getQuery() {
+            if (exchange != null) {
+                return exchange.getRequestURI().getQuery();
+            }
+            return "";
+        }
+
+
+        public String getHeader(String name) {
+            return exchange == null ? null : exchange.getRequestHeaders().getFirst(name);
+        }
+
+        // the first value of each query parameter, in the order they appear
+        public Map<String, String> getQueryParams() {
+            return queryParams().asMap();
+        }
+
+        public String getQueryParam(String name) {
+            return queryParams().first(name);
+        }
+
+        // every value given for the parameter, as in ?tag=a&tag=b
+        public List<String> getQueryParamValues(String name) {
+            return queryParams().all(name);
+        }
+
+        // the fields of an application/x-www-form-urlencoded body, which is read in full to get them
+        public Map<String, String> getFormParams() {
+            return formParams().asMap();
+        }
+
+        public String getFormParam(String name) {
+            return formParams().first(name);
+        }
+
+        public List<String> getFormParamValues(String name) {
+            return formParams().all(name);
+        }
+
+        private Params queryParams() {
+            if (queryParams == null) {
+                queryParams = Params.parse(exchange == null ? null : exchange.getRequestURI().getRawQuery());
+            }
+            return queryParams;
+        }
+
+        private Params formParams() {
+            if (formParams == null) {
+                String contentType = getHeader("Content-Type");
+                boolean form = contentType != null && contentType.trim().regionMatches(true, 0, "application/x-www-form-urlencoded", 0, 33);
+                formParams = Params.parse(form ? getBody() : null);
+            }
+            return formParams;
+        }
+    }
+
+    // Name/value pairs from a query string or a url-encoded form, split and percent-decoded in one pass. Names are
+    // kept in order of first appearance, each with an array of its values
+    static final class Params {
+        private static final Params EMPTY = new Params(new String[0], new String[0][], 0);
+
+        private final String[] names;
+        private final String[][] values;
+        private final int size;
+        private Map<String, Integer> index;
+        private Map<String, String> map;
+
+        private Params(String[] names, String[][] values, int size) {
+            this.names = names;
+            this.values = values;
+            this.size = size;
+        }
+
+        static Params parse(String encoded) {
+            if (encoded == null || encoded.isEmpty()) {
+                return EMPTY;
+            }
+            String[] names = new String[4];
+            String[][] values = new String[4][];
+            Map<String, Integer> positions = new HashMap<>();
+            int size = 0;
+            int start = 0;
+            while (start <= encoded.length()) {
+                int end = encoded.indexOf('&', start);
+                if (end < 0) {
+                    end = encoded.length();
+                }
+                if (end > start) {
+                    int eq = encoded.indexOf('=', start);
+                    if (eq < 0 || eq > end) {
+                        eq = end;
+                    }
+                    String name = decode(encoded, start, eq);
+                    String value = eq < end ? decode(encoded, eq + 1, end) : "";
+                    Integer at = positions.get(name);
+                    if (at == null) {
+                        if (size == names.length) {
+                            names = Arrays.copyOf(names, size * 2);
+                            values = Arrays.copyOf(values, size * 2);
+                        }
+                        positions.put(name, size);
+                        names[size] = name;
+                        values[size++] = new String[] {value};
+                    } else {
+                        String[] previous = values[at];
+                        String[] more = Arrays.copyOf(previous, previous.length + 1);
+                        more[previous.length] = value;
+                        values[at] = more;
+                    }
+                }
+                start = end + 1;
+            }
+            Params params = new Params(names, values, size);
+            if (size > 8) {
+                params.index = positions;
+            }
+            return params;
+        }
+
+        String first(String name) {
+            int at = indexOf(name);
+            return at < 0 ? null : values[at][0];
+        }
+
+        List<String> all(String name) {
+            int at = indexOf(name);
+            return at < 0 ? Collections.emptyList() : List.of(values[at]);
+        }
+
+        Map<String, String> asMap() {
+            if (map == null) {
+                if (size == 0) {
+                    map = Collections.emptyMap();
+                } else {
+                    Map<String, String> firsts = new LinkedHashMap<>();
+                    for (int i = 0; i < size; i++) {
+                        firsts.put(names[i], values[i][0]);
+                    }
+                    map = Collections.unmodifiableMap(firsts);
+                }
+            }
+            return map;
+        }
+
+        // a scan beats hashing for the handful of params most requests have
+        private int indexOf(String name) {
+            if (index != null) {
+                Integer at = index.get(name);
+                return at == null ? -1 : at;
+            }
+            for (int i = 0; i < size; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // '+' is a space, and %XX escapes are UTF-8 bytes. A malformed escape is left as it is
+        static String decode(String s, int from, int to) {
+            int i = from;
+            while (i < to && s.charAt(i) != '%' && s.charAt(i) != '+') {
+                i++;
+            }
+            if (i == to) {
+                return s.substring(from, to);
+            }
+            StringBuilder decoded = new StringBuilder(to - from).append(s, from, i);
+            byte[] bytes = null;
+            while (i < to) {
+                char c = s.charAt(i);
+                if (c == '+') {
+                    decoded.append(' ');
+                    i++;
+                } else if (c == '%' && i + 2 < to && hexValue(s, i + 1) >= 0 && hexValue(s, i + 2) >= 0) {
+                    // a run of escapes decodes together, as a multi-byte character spans several
+                    if (bytes == null) {
+                        bytes = new byte[(to - i) / 3];
+                    }
+                    int count = 0;
+                    while (i + 2 < to && s.charAt(i) == '%' && hexValue(s, i + 1) >= 0 && hexValue(s, i + 2) >= 0) {
+                        bytes[count++] = (byte) (hexValue(s, i + 1) << 4 | hexValue(s, i + 2));
+                        i += 3;
+                    }
+                    decoded.append(new String(bytes, 0, count, StandardCharsets.UTF_8));
+                } else {
+                    decoded.append(c);
+                    i++;
+                }
+            }
+            return decoded.toString();
+        }
+
+        private static int hexValue(String s, int i) {
+            char c = s.charAt(i);
+            return c < 128 ? Character.digit(c, 16) : -1;
+        }
+    }
+
+    // Reads a multipart/form-data body as it arrives, one part per next(). Each part is read in full before it is
+    // returned: up to spillThreshold bytes in memory, beyond that into a temp file, so uploads of any size don't
+    // have to fit on the heap
+    public static class MultipartReader implements Closeable {
+        private static final int MAX_HEADER_LINE = 8 * 1024;
+        private static final int MAX_HEADERS = 32;
+
+        private final InputStream in;
+        private final byte[] delimiter;
+        private final int spillThreshold;
+        private final byte[] buf;
+        private int pos;
+        private int limit;
+        private boolean started;
+        private boolean finished;
+        private final List<MultipartPart> parts = new ArrayList<>();
+
+        public MultipartReader(InputStream in, String boundary, int spillThreshold) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.spillThreshold = spillThreshold;
+            this.buf = new byte[Math.max(16 * 1024, delimiter.length * 2)];
+            // the first boundary has no CRLF before it. Pretending it does means one delimiter search does for all
+            buf[limit++] = '\r';
+            buf[limit++] = '\n';
+        }
+
+        // the next part, or null after the closing boundary
+        public MultipartPart next() throws IOException {
+            if (finished) {
+                return null;
+            }
+            if (!started) {
+                started = true;
+                if (!readUntilDelimiter(OutputStream.nullOutputStream())) {
+                    throw malformed("no boundary found");
+                }
+            }
+            if (!fill(2)) {
+                throw malformed("body ends after a boundary");
+            }
+            if (buf[pos] == '-' && buf[pos + 1] == '-') {
+                finished = true;
+                return null;
+            }
+            while (fill(1) && (buf[pos] == ' ' || buf[pos] == '\t')) {
+                pos++;
+            }
+            if (!fill(2) || buf[pos] != '\r' || buf[pos + 1] != '\n') {
+                throw malformed("boundary not followed by CRLF");
+            }
+            pos += 2;
+            Map<String, String> headers = readHeaders();
+            SpillingOutputStream content = new SpillingOutputStream(spillThreshold);
+            try {
+                if (!readUntilDelimiter(content)) {
+                    throw malformed("part not closed by a boundary");
+                }
+                content.close();
+            } catch (IOException | RuntimeException e) {
+                content.discard();
+                throw e;
+            }
+            MultipartPart part = new MultipartPart(headers, content.bytes(), content.file(), content.size());
+            parts.add(part);
+            return part;
+        }
+
+        // deletes the temp files of parts not moved elsewhere
+        @Override
+        public void close() {
+            for (MultipartPart part : parts) {
+                part.close();
+            }
+        }
+
+        // at least n bytes buffered from pos, unless the body ends first
+        private boolean fill(int n) throws IOException {
+            if (limit - pos >= n) {
+                return true;
+            }
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            while (limit < n) {
+                int read = in.read(buf, limit, buf.length - limit);
+                if (read < 0) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+
+        // copies bytes to the sink up to the next delimiter, and consumes that. False if the body ends first
+        private boolean readUntilDelimiter(OutputStream sink) throws IOException {
+            while (true) {
+                int found = indexOfDelimiter();
+                if (found >= 0) {
+                    sink.write(buf, pos, found - pos);
+                    pos = found + delimiter.length;
+                    return true;
+                }
+                // hold back a tail that could be the start of a delimiter split across reads
+                int safe = Math.max(pos, limit - delimiter.length + 1);
+                sink.write(buf, pos, safe - pos);
+                pos = safe;
+                if (!fill(limit - pos + 1)) {
+                    return false;
+                }
+            }
+        }
+
+        private int indexOfDelimiter() {
+            int last = limit - delimiter.length;
+            next:
+            for (int i = pos; i <= last; i++) {
+                if (buf[i] != '\r') {
+                    continue;
+                }
+                for (int j = 1; j < delimiter.length; j++) {
+                    if (buf[i + j] != delimiter[j]) {
+                        continue next;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private Map<String, String> readHeaders() throws IOException {
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+                if (headers.size() > MAX_HEADERS) {
+                    throw malformed("too many part headers");
+                }
+            }
+            return headers;
+        }
+
+        private String readLine() throws IOException {
+            int from = pos;
+            int scanned = pos;
+            while (true) {
+                for (; scanned + 1 < limit; scanned++) {
+                    if (buf[scanned] == '\r' && buf[scanned + 1] == '\n') {
+                        // browsers send names as raw UTF-8
+                        String line = new String(buf, from, scanned - from, StandardCharsets.UTF_8);
+                        pos = scanned + 2;
+                        return line;
+                    }
+                }
+                if (scanned - from > MAX_HEADER_LINE) {
+                    throw malformed("part header line too long");
+                }
+                int buffered = limit - from;
+                pos = from;
+                if (!fill(buffered + 1)) {
+                    throw malformed("body ends in part headers");
+                }
+                scanned += pos - from;
+                from = pos;
+            }
+        }
+
+        private static IOException malformed(String reason) {
+            return new IOException("Malformed multipart/form-data body: " + reason);
+        }
+    }
+
+    // A part of a multipart/form-data body, held in memory or, past the spill threshold, in a temp file
+    public static class MultipartPart implements Closeable {
+        private final Map<String, String> headers;
+        private final byte[] bytes;
+        private Path file;
+        private final long size;
+        private boolean moved;
+
+        private MultipartPart(Map<String, String> headers, byte[] bytes, Path file, long size) {
+            this.headers = headers;
+            this.bytes = bytes;
+            this.file = file;
+            this.size = size;
+        }
+
+        public String getName() { return Request.headerParameter(getHeader("Content-Disposition"), "name"); }
+        // null for plain form fields
+        public String getFilename() { return Request.headerParameter(getHeader("Content-Disposition"), "filename"); }
+        public String getContentType() {
+            String contentType = getHeader("Content-Type");
+            return contentType == null ? "text/plain" : contentType;
+        }
+        public String getHeader(String name) { return headers.get(name.toLowerCase(Locale.ROOT)); }
+        public Map<String, String> getHeaders() { return Collections.unmodifiableMap(headers); }
+        public long getSize() { return size; }
+        public boolean isInMemory() { return bytes != null; }
+        // the temp file holding the part, or null if it is in memory
+        public Path getFile() { return file; }
+
+        public InputStream getInputStream() throws IOException {
+            return bytes != null ? new ByteArrayInputStream(bytes) : Files.newInputStream(file);
+        }
+
+        public byte[] getBytes() throws IOException {
+            return bytes != null ? bytes : Files.readAllBytes(file);
+        }
+
+        // decoded with the part's charset, or UTF-8 if it doesn't name one
+        public String getString() throws IOException {
+            return new String(getBytes(), Request.charsetOf(getHeader("Content-Type")));
+        }
+
+        // a rename for spilled parts, so large uploads aren't copied again. The part is no longer deleted after this
+        public void moveTo(Path target) throws IOException {
+            if (bytes != null) {
+                Files.write(target, bytes);
+                return;
+            }
+            try {
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            file = target;
+            moved = true;
+        }
+
+        @Override
+        public void close() {
+            if (file != null && !moved) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // left for the OS to clear from its temp directory
+                }
+            }
+        }
+    }
+
+    // in memory up to the threshold, then everything so far and after into a temp file
+    private static class SpillingOutputStream extends OutputStream {
+        private final int threshold;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path file;
+        private OutputStream fileOut;
+        private long size;
+
+        private SpillingOutputStream(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            size += len;
+            if (fileOut == null && memory.size() + (long) len > threshold) {
+                file = Files.createTempFile("tiny-multipart-", ".tmp");
+                fileOut = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+            if (fileOut != null) {
+                fileOut.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+
+        private void discard() {
+            try {
+                close();
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                // left for the OS to clear from its temp directory
+            }
+        }
+
+        private byte[] bytes() { return memory == null ? null : memory.toByteArray(); }
+        private Path file() { return file; }
+        private long size() { return size; }
+    }
+
+    // A pull parser for JSON, reading tokens straight off a stream as they're asked for, so a document never has to
+    // be held as a String first. readValue() builds Maps, Lists, Strings, Longs, Doubles and Booleans for when a tree
+    // is wanted after all
+    public static class JsonReader implements Closeable {
+        public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+
+        private static final int MAX_DEPTH = 512;
+        private static final int MAX_NUMBER_LENGTH = 256;
+        private static final byte EMPTY_DOCUMENT = 0, NONEMPTY_DOCUMENT = 1, EMPTY_ARRAY = 2, NONEMPTY_ARRAY = 3,
+                EMPTY_OBJECT = 4, NONEMPTY_OBJECT = 5, DANGLING_NAME = 6;
+
+        private final Reader in;
+        private final char[] buf = new char[8192];
+        private int pos;
+        private int limit;
+        private final byte[] scopes = new byte[MAX_DEPTH + 1];
+        private int depth = 1;
+        private Token peeked;
+        private boolean peekedBoolean;
+        private final StringBuilder text = new StringBuilder();
+
+        public JsonReader(InputStream in) {
+            this(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        public JsonReader(Reader in) {
+            this.in = in;
+            scopes[0] = EMPTY_DOCUMENT;
+        }
+
+        public Token peek() throws IOException {
+            if (peeked != null) {
+                return peeked;
+            }
+            switch (scopes[depth - 1]) {
+                case EMPTY_ARRAY -> {
+                    scopes[depth - 1] = NONEMPTY_ARRAY;
+                    if (nextNonWhitespace() == ']') {
+                        return peeked = Token.END_ARRAY;
+                    }
+                    pos--;
+                }
+                case NONEMPTY_ARRAY -> {
+                    int c = nextNonWhitespace();
+                    if (c == ']') {
+                        return peeked = Token.END_ARRAY;
+                    } else if (c != ',') {
+                        throw syntaxError("expected ',' or ']'");
+                    }
+                }
+                case EMPTY_OBJECT, NONEMPTY_OBJECT -> {
+                    int c = nextNonWhitespace();
+                    if (c == '}') {
+                        return peeked = Token.END_OBJECT;
+                    }
+                    if (scopes[depth - 1] == NONEMPTY_OBJECT) {
+                        if (c != ',') {
+                            throw syntaxError("expected ',' or '}'");
+                        }
+                        c = nextNonWhitespace();
+                    }
+                    if (c != '"') {
+                        throw syntaxError("expected a name");
+                    }
+                    scopes[depth - 1] = DANGLING_NAME;
+                    return peeked = Token.NAME;
+                }
+                case DANGLING_NAME -> {
+                    scopes[depth - 1] = NONEMPTY_OBJECT;
+                    if (nextNonWhitespace() != ':') {
+                        throw syntaxError("expected ':'");
+                    }
+                }
+                case EMPTY_DOCUMENT -> scopes[depth - 1] = NONEMPTY_DOCUMENT;
+                default -> {
+                    if (nextNonWhitespaceOrEnd() != -1) {
+                        throw syntaxError("more after the end of the document");
+                    }
+                    return peeked = Token.END_DOCUMENT;
+                }
+            }
+            int c = nextNonWhitespace();
+            switch (c) {
+                case '{' -> peeked = Token.BEGIN_OBJECT;
+                case '[' -> peeked = Token.BEGIN_ARRAY;
+                case '"' -> peeked = Token.STRING;
+                case 't' -> {
+                    expectLiteral("rue");
+                    peekedBoolean = true;
+                    peeked = Token.BOOLEAN;
+                }
+                case 'f' -> {
+                    expectLiteral("alse");
+                    peekedBoolean = false;
+                    peeked = Token.BOOLEAN;
+                }
+                case 'n' -> {
+                    expectLiteral("ull");
+                    peeked = Token.NULL;
+                }
+                default -> {
+                    if (c != '-' && (c < '0' || c > '9')) {
+                        throw syntaxError("unexpected character '" + (char) c + "'");
+                    }
+                    pos--;
+                    readNumber();
+                    peeked = Token.NUMBER;
+                }
+            }
+            return peeked;
+        }
+
+        public boolean hasNext() throws IOException {
+            Token token = peek();
+            return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+        }
+
+        public void beginObject() throws IOException {
+            expect(Token.BEGIN_OBJECT);
+            push(EMPTY_OBJECT);
+        }
+
+        public void endObject() throws IOException {
+            expect(Token.END_OBJECT);
+            depth--;
+        }
+
+        public void beginArray() throws IOException {
+            expect(Token.BEGIN_ARRAY);
+            push(EMPTY_ARRAY);
+        }
+
+        public void endArray() throws IOException {
+            expect(Token.END_ARRAY);
+            depth--;
+        }
+
+        public String nextName() throws IOException {
+            expect(Token.NAME);
+            return readString();
+        }
+
+        // a number's text is given as it is
+        public String nextString() throws IOException {
+            Token token = peek();
+            if (token == Token.NUMBER) {
+                peeked = null;
+                return text.toString();
+            }
+            expect(Token.STRING);
+            return readString();
+        }
+
+        public boolean nextBoolean() throws IOException {
+            expect(Token.BOOLEAN);
+            return peekedBoolean;
+        }
+
+        public void nextNull() throws IOException {
+            expect(Token.NULL);
+        }
+
+        public long nextLong() throws IOException {
+            expect(Token.NUMBER);
+            try {
+                return Long.parseLong(text, 0, text.length(), 10);
+            } catch (NumberFormatException e) {
+                double value = Double.parseDouble(text.toString());
+                if (value != (long) value) {
+                    throw new NumberFormatException("Not a long: " + text);
+                }
+                return (long) value;
+            }
+        }
+
+        public int nextInt() throws IOException {
+            long value = nextLong();
+            if (value != (int) value) {
+                throw new NumberFormatException("Not an int: " + value);
+            }
+            return (int) value;
+        }
+
+        public double nextDouble() throws IOException {
+            expect(Token.NUMBER);
+            return Double.parseDouble(text.toString());
+        }
+
+        // the next value, however deeply nested, or a name and its value
+        public void skipValue() throws IOException {
+            int open = 0;
+            do {
+                switch (peek()) {
+                    case BEGIN_OBJECT -> { beginObject(); open++; }
+                    case BEGIN_ARRAY -> { beginArray(); open++; }
+                    case END_OBJECT -> { endObject(); open--; }
+                    case END_ARRAY -> { endArray(); open--; }
+                    case NAME -> {
+                        nextName();
+                        if (open == 0) {
+                            skipValue();
+                        }
+                    }
+                    case STRING -> nextString();
+                    case END_DOCUMENT -> throw syntaxError("no value to skip");
+                    default -> peeked = null;
+                }
+            } while (open > 0);
+        }
+
+        // the next value as a Map, List, String, Long, Double, Boolean or null
+        public Object readValue() throws IOException {
+            switch (peek()) {
+                case BEGIN_OBJECT -> {
+                    Map<String, Object> object = new LinkedHashMap<>();
+                    beginObject();
+                    while (hasNext()) {
+                        object.put(nextName(), readValue());
+                    }
+                    endObject();
+                    return object;
+                }
+                case BEGIN_ARRAY -> {
+                    List<Object> array = new ArrayList<>();
+                    beginArray();
+                    while (hasNext()) {
+                        array.add(readValue());
+                    }
+                    endArray();
+                    return array;
+                }
+                case STRING -> {
+                    return nextString();
+                }
+                case NUMBER -> {
+                    peeked = null;
+                    try {
+                        return Long.parseLong(text, 0, text.length(), 10);
+                    } catch (NumberFormatException e) {
+                        return Double.parseDouble(text.toString());
+                    }
+                }
+                case BOOLEAN -> {
+                    return nextBoolean();
+                }
+                case NULL -> {
+                    nextNull();
+                    return null;
+                }
+                default -> throw syntaxError("expected a value");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void expect(Token token) throws IOException {
+            if (peek() != token) {
+                throw new IllegalStateException("Expected " + token + " but was " + peeked);
+            }
+            peeked = null;
+        }
+
+        private void push(byte scope) throws IOException {
+            if (depth == MAX_DEPTH) {
+                throw syntaxError("nested more than " + MAX_DEPTH + " deep");
+            }
+            scopes[depth++] = scope;
+        }
+
+        private boolean fill() throws IOException {
+            if (pos < limit) {
+                return true;
+            }
+            pos = 0;
+            limit = Math.max(in.read(buf, 0, buf.length), 0);
+            return limit > 0;
+        }
+
+        private int nextNonWhitespace() throws IOException {
+            int c = nextNonWhitespaceOrEnd();
+            if (c == -1) {
+                throw syntaxError("unexpected end of document");
+            }
+            return c;
+        }
+
+        private int nextNonWhitespaceOrEnd() throws IOException {
+            while (fill()) {
+                char c = buf[pos++];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        private void expectLiteral(String rest) throws IOException {
+            for (int i = 0; i < rest.length(); i++) {
+                if (!fill() || buf[pos++] != rest.charAt(i)) {
+                    throw syntaxError("unexpected literal");
+                }
+            }
+        }
+
+        // RFC 8259's -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)? into text
+        private void readNumber() throws IOException {
+            text.setLength(0);
+            while (fill()) {
+                char c = buf[pos];
+                if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                    if (text.length() == MAX_NUMBER_LENGTH) {
+                        throw syntaxError("number too long");
+                    }
+                    text.append(c);
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            int i = text.charAt(0) == '-' ? 1 : 0;
+            int digits = skipDigits(i);
+            boolean valid = digits > i && (text.charAt(i) != '0' || digits == i + 1);
+            i = digits;
+            if (valid && i < text.length() && text.charAt(i) == '.') {
+                digits = skipDigits(i + 1);
+                valid = digits > i + 1;
+                i = digits;
+            }
+            if (valid && i < text.length() && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+                i++;
+                if (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                    i++;
+                }
+                digits = skipDigits(i);
+                valid = digits > i;
+                i = digits;
+            }
+            if (!valid || i != text.length()) {
+                throw syntaxError("malformed number " + text);
+            }
+        }
+
+        private int skipDigits(int i) {
+            while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                i++;
+            }
+            return i;
+        }
+
+        // after the opening quote
+        private String readString() throws IOException {
+            text.setLength(0);
+            while (true) {
+                if (!fill()) {
+                    throw syntaxError("unterminated string");
+                }
+                int start = pos;
+                while (pos < limit) {
+                    char c = buf[pos];
+                    if (c == '"' || c == '\\' || c < 0x20) {
+                        break;
+                    }
+                    pos++;
+                }
+                text.append(buf, start, pos - start);
+                if (pos == limit) {
+                    continue;
+                }
+                char c = buf[pos++];
+                if (c == '"') {
+                    return text.toString();
+                } else if (c < 0x20) {
+                    throw syntaxError("unescaped control character in string");
+                }
+                if (!fill()) {
+                    throw syntaxError("unterminated string");
+                }
+                char escaped = buf[pos++];
+                switch (escaped) {
+                    case '"', '\\', '/' -> text.append(escaped);
+                    case 'b' -> text.append('\b');
+                    case 'f' -> text.append('\f');
+                    case 'n' -> text.append('\n');
+                    case 'r' -> text.append('\r');
+                    case 't' -> text.append('\t');
+                    case 'u' -> {
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = fill() && buf[pos] < 128 ? Character.digit(buf[pos++], 16) : -1;
+                            if (digit < 0) {
+                                throw syntaxError("malformed \\u escape");
+                            }
+                            code = code << 4 | digit;
+                        }
+                        text.append((char) code);
+                    }
+                    default -> throw syntaxError("unknown escape \\" + escaped);
+                }
+            }
+        }
+
+        private IOException syntaxError(String reason) {
+            return new IOException("Malformed JSON: " + reason);
+        }
+    }
+
+    // Writes JSON as UTF-8 into a buffer that's reused until the document is done, going to the stream each time it
+    // fills, so nothing is built as a String on the way
+    public static class JsonWriter implements Closeable, Flushable {
+
+        public interface Content {
+            void writeTo(JsonWriter json) throws IOException;
+        }
+
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        private final OutputStream out;
+        private final byte[] buf;
+        private int count;
+        private boolean flushedAny;
+        // for each open array or object, whether it has had anything in it yet
+        private boolean[] nonEmpty = new boolean[32];
+        private boolean[] isObject = new boolean[32];
+        private int depth;
+        private boolean afterName;
+
+        public JsonWriter(OutputStream out) {
+            this(out, 8192);
+        }
+
+        public JsonWriter(OutputStream out, int bufferSize) {
+            this.out = out;
+            this.buf = new byte[Math.max(bufferSize, 16)];
+        }
+
+        public JsonWriter beginObject() throws IOException {
+            return open(true, '{');
+        }
+
+        public JsonWriter endObject() throws IOException {
+            return close(true, '}');
+        }
+
+        public JsonWriter beginArray() throws IOException {
+            return open(false, '[');
+        }
+
+        public JsonWriter endArray() throws IOException {
+            return close(false, ']');
+        }
+
+        public JsonWriter name(String name) throws IOException {
+            if (depth == 0 || !isObject[depth - 1] || afterName) {
+                throw new IllegalStateException("A name has to be inside an object, before a value");
+            }
+            if (nonEmpty[depth - 1]) {
+                writeByte(',');
+            }
+            nonEmpty[depth - 1] = true;
+            writeString(name);
+            writeByte(':');
+            afterName = true;
+            return this;
+        }
+
+        public JsonWriter value(String value) throws IOException {
+            if (value == null) {
+                return nullValue();
+            }
+            beforeValue();
+            writeString(value);
+            return this;
+        }
 
-                // route unmatched
-                if (!routeMatched) {
-                    sendErrorResponse(exchange, 404, "Not found");
-                    stats.put("endpoint", "unmatched");
-                    stats.put("status", 404);
-                }
+        public JsonWriter value(long value) throws IOException {
+            beforeValue();
+            writeAscii(Long.toString(value));
+            return this;
+        }
 
-            } finally {
-                stats.put("path", path);
-                stats.put("duration", System.currentTimeMillis() - startTime);
-                recordStatistics(path, stats);
+        public JsonWriter value(double value) throws IOException {
+            if (!Double.isFinite(value)) {
+                throw new IllegalArgumentException("JSON has no " + value);
             }
+            beforeValue();
+            writeAscii(Double.toString(value));
+            return this;
         }
 
-        private void handleEndPointMatch(HttpExchange exchange, Map.Entry<Pattern, EndPoint> route, Request request, Response response, Map<String, String> params, Attributes attributes, ComponentCache requestCache, Matcher matcher, Map<String, Object> stats) {
-            long endPointStartTime = System.currentTimeMillis();
-            try {
-                try {
-                    route.getValue().handle(request, response, createRequestContext(params, attributes, requestCache, matcher));
+        public JsonWriter value(boolean value) throws IOException {
+            beforeValue();
+            writeAscii(value ? "true" : "false");
+            return this;
+        }
 
-                    stats.put("endpoint", route.getKey().pattern());
-                    stats.put("status", response.exchange.getResponseCode());
+        public JsonWriter nullValue() throws IOException {
+            beforeValue();
+            writeAscii("null");
+            return this;
+        }
 
-                } catch (Throwable e) {
-                    stats.put("endpoint", route.getKey().pattern() + " -Exception");
-                    stats.put("status", 500);
-                    exceptionDuringHandling(e, exchange);
-                    return;
+        // Maps, Iterables, arrays, Numbers, Booleans and nulls as themselves, anything else as its toString()
+        public JsonWriter value(Object value) throws IOException {
+            if (value == null) {
+                return nullValue();
+            } else if (value instanceof Map<?, ?> map) {
+                beginObject();
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    name(String.valueOf(entry.getKey()));
+                    value(entry.getValue());
                 }
-            } catch (ServerException e) {
-                stats.put("endpoint", route.getKey().pattern() + " -ServerException");
-                stats.put("status", 500);
+                return endObject();
+            } else if (value instanceof Iterable<?> iterable) {
+                beginArray();
+                for (Object element : iterable) {
+                    value(element);
+                }
+                return endArray();
+            } else if (value.getClass().isArray()) {
+                beginArray();
+                for (int i = 0, length = java.lang.reflect.Array.getLength(value); i < length; i++) {
+                    value(java.lang.reflect.Array.get(value, i));
+                }
+                return endArray();
+            } else if (value instanceof Double || value instanceof Float) {
+                return value(((Number) value).doubleValue());
+            } else if (value instanceof Number number) {
+                beforeValue();
+                writeAscii(number.toString());
+                return this;
+            } else if (value instanceof Boolean bool) {
+                return value(bool.booleanValue());
+            }
+            return value(value.toString());
+        }
 
-                serverException(e);
-                sendErrorResponse(exchange, 500, "Internal server error: " + e.getMessage());
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBuffer();
+            out.close();
+        }
+
+        // what's been written, if none of it has gone to the stream yet, else null
+        byte[] unflushed() {
+            return flushedAny ? null : Arrays.copyOf(buf, count);
+        }
+
+        private JsonWriter open(boolean object, char bracket) throws IOException {
+            beforeValue();
+            if (depth == nonEmpty.length) {
+                nonEmpty = Arrays.copyOf(nonEmpty, depth * 2);
+                isObject = Arrays.copyOf(isObject, depth * 2);
+            }
+            nonEmpty[depth] = false;
+            isObject[depth++] = object;
+            writeByte(bracket);
+            return this;
+        }
+
+        private JsonWriter close(boolean object, char bracket) throws IOException {
+            if (depth == 0 || isObject[depth - 1] != object || afterName) {
+                throw new IllegalStateException("Nothing to close with " + bracket);
+            }
+            depth--;
+            writeByte(bracket);
+            return this;
+        }
+
+        private void beforeValue() throws IOException {
+            if (depth == 0) {
                 return;
-            } finally {
-                stats.put("endpointDuration", System.currentTimeMillis() - endPointStartTime);
+            }
+            if (isObject[depth - 1]) {
+                if (!afterName) {
+                    throw new IllegalStateException("A value in an object needs a name first");
+                }
+                afterName = false;
+            } else {
+                if (nonEmpty[depth - 1]) {
+                    writeByte(',');
+                }
+                nonEmpty[depth - 1] = true;
             }
         }
 
-        private FilterAction handleFilterMatch(HttpExchange exchange, FilterEntry filterEntry, Matcher filterMatcher, Request request, Response response, Attributes attributes, ComponentCache requestCache, Matcher matcher, List<FilterStat> filterSequence) {
-            Map<String, String> filterParams = new HashMap<>();
-            for (int i = 1; i <= filterMatcher.groupCount(); i++) {
-                filterParams.put(String.valueOf(i), filterMatcher.group(i));
+        private void writeByte(int b) throws IOException {
+            if (count == buf.length) {
+                flushBuffer();
             }
-            long filterStartTime = System.currentTimeMillis();
-            try {
-                FilterAction result;
-                try {
-                    result = filterEntry.filter.filter(request, response, createRequestContext(filterParams, attributes, requestCache, matcher));
-                    filterSequence.add(new FilterStat(filterEntry.pattern.pattern(), "ok", System.currentTimeMillis() - filterStartTime));
-                    return result;
-                } catch (Exception e) {
-                    filterSequence.add(new FilterStat(filterEntry.pattern.pattern(), "exception", System.currentTimeMillis() - filterStartTime));
-                    exceptionDuringHandling(e, exchange);
-                    return FilterAction.STOP;
+            buf[count++] = (byte) b;
+        }
+
+        private void writeAscii(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                writeByte(s.charAt(i));
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            writeByte('"');
+            for (int i = 0; i < s.length(); i++) {
+                if (buf.length - count < 12) {
+                    flushBuffer();
+                }
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (c == '"' || c == '\\') {
+                        buf[count++] = '\\';
+                        buf[count++] = (byte) c;
+                    } else if (c >= 0x20) {
+                        buf[count++] = (byte) c;
+                    } else if (c == '\n') {
+                        buf[count++] = '\\';
+                        buf[count++] = 'n';
+                    } else if (c == '\r') {
+                        buf[count++] = '\\';
+                        buf[count++] = 'r';
+                    } else if (c == '\t') {
+                        buf[count++] = '\\';
+                        buf[count++] = 't';
+                    } else {
+                        buf[count++] = '\\';
+                        buf[count++] = 'u';
+                        buf[count++] = '0';
+                        buf[count++] = '0';
+                        buf[count++] = HEX[c >> 4];
+                        buf[count++] = HEX[c & 0xF];
+                    }
+                } else if (c < 0x800) {
+                    buf[count++] = (byte) (0xC0 | c >> 6);
+                    buf[count++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte) (0xF0 | cp >> 18);
+                    buf[count++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    buf[count++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    buf[count++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    if (Character.isSurrogate(c)) {
+                        c = '\uFFFD'; // unpaired, which UTF-8 can't carry
+                    }
+                    buf[count++] = (byte) (0xE0 | c >> 12);
+                    buf[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buf[count++] = (byte) (0x80 | c & 0x3F);
                 }
-            } catch (ServerException e) {
-                filterSequence.add(new FilterStat(filterEntry.pattern.pattern(), "server-exception", System.currentTimeMillis() - filterStartTime));
-                serverException(e);
-                sendErrorResponse(exchange, 500, "Internal server error: " + e.getMessage());
-                return FilterAction.STOP;
             }
-         }
+            writeByte('"');
+        }
 
-        protected HttpServer makeHttpServer() throws IOException {
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buf, 0, count);
+                count = 0;
+                flushedAny = true;
+            }
+        }
+    }
 
-            HttpServer s = HttpServer.create();
-            s.setExecutor(Executors.newVirtualThreadPerTaskExecutor()); // Default executor
+    // for request bodies of unknown length, which the JDK's server would otherwise read for as long as they go on
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
 
-            // Big unknown ...
-            // how to set timeouts on server/connections
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
 
-        //            try {
-        //                // The HttpServer implementation is typically wrapped in a delegate field
-        //                Field serverField = s.getClass().getDeclaredField("server");
-        //                serverField.setAccessible(true);
-        //                Object serverImpl = serverField.get(s);
-        //
-        //                // sun.net.httpserver.ServerImpl has a setIdleInterval(int seconds) or similar
-        //                Method setIdleIntervalMethod = serverImpl.getClass().getDeclaredMethod("setIdleInterval", int.class);
-        //                setIdleIntervalMethod.setAccessible(true);
-        //
-        //                // For example, set 10 seconds idle timeout
-        //                setIdleIntervalMethod.invoke(serverImpl, config.webIdleInterval);
-        //
-        //            } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | NoSuchFieldException e) {
-        //                throw new RuntimeException("Can't do reflection to set timeouts", e);
-        //            }
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
 
-            return s;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
         }
 
-        private RequestContext createRequestContext(Map<String, String> params, Attributes attributes, ComponentCache requestCache, Matcher matcher) {
-            return new ServerRequestContext(params, dependencyManager, requestCache, matcher, attributes);
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counted(skipped);
+            return skipped;
         }
 
-        protected void recordStatistics(String path, Map<String, Object> stats) {
-            // This method is intentionally left empty for now.
+        private void counted(long n) throws PayloadTooLargeException {
+            count += n;
+            if (count > limit) {
+                throw new PayloadTooLargeException(limit);
+            }
         }
+    }
 
-        protected void serverException(ServerException e) {
+    // A compressed request body, inflated on first read. Inflating past the limit is a PayloadTooLargeException
+    private static class InflatingInputStream extends InputStream {
+        private final InputStream compressed;
+        private final String encoding;
+        private final long limit;
+        private InputStream inflated;
+        private Inflater inflater; // ours to end(), unlike the one a GZIPInputStream makes and ends itself
+
+        private InflatingInputStream(InputStream compressed, String encoding, long limit) {
+            this.compressed = compressed;
+            this.encoding = encoding;
+            this.limit = limit;
         }
 
-        protected void webSocketTimeout(String pathLength, InetAddress inetAddress, SocketTimeoutException payload) {
+        private InputStream inflated() throws IOException {
+            if (inflated == null) {
+                InputStream in;
+                if (encoding.equals("deflate")) {
+                    // meant to be zlib-wrapped, but some clients send raw deflate
+                    PushbackInputStream peekable = new PushbackInputStream(compressed, 2);
+                    byte[] header = peekable.readNBytes(2);
+                    peekable.unread(header);
+                    boolean zlib = header.length == 2 && (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+                    inflater = new Inflater(!zlib);
+                    in = new InflaterInputStream(peekable, inflater, 8192);
+                } else {
+                    in = new GZIPInputStream(compressed, 8192);
+                }
+                inflated = new LimitedInputStream(in, limit);
+            }
+            return inflated;
+        }
 
+        @Override
+        public int read() throws IOException {
+            return inflated().read();
         }
 
-        protected void webSocketIoException(String pathLength, InetAddress inetAddress, IOException payload) {
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return inflated().read(b, off, len);
+        }
 
+        @Override
+        public int available() throws IOException {
+            return inflated == null ? 0 : inflated.available();
         }
 
-        /**
-         * Most likely a RuntimeException or Error in a endPoint() or filter() code block
-         */
-        protected void exceptionDuringHandling(Throwable e, HttpExchange exchange) {
-            sendErrorResponse(exchange, 500, "Server error");
+        // zlib's native memory goes back now, rather than whenever the Inflater is collected
+        @Override
+        public void close() throws IOException {
+            try {
+                (inflated != null ? inflated : compressed).close();
+            } finally {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
         }
+    }
 
-        public WebServer start() {
-            if (serverState.hasStarted()) {
-                throw new IllegalStateException("Server has already been started.");
+    // A gzip or zlib-wrapped deflate response body. The Deflaters and their buffers are pooled, as zlib's state is
+    // a few hundred KB to set up for each response
+    private static class CompressingOutputStream extends FilterOutputStream {
+        private static final int POOL_SIZE = 32;
+        private static final BlockingQueue<Compressor> GZIP_POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+        private static final BlockingQueue<Compressor> DEFLATE_POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private record Compressor(Deflater deflater, byte[] buf) {}
+
+        private final boolean gzip;
+        private final Compressor compressor;
+        private final CRC32 crc;
+        private boolean closed;
+
+        private CompressingOutputStream(OutputStream out, boolean gzip) throws IOException {
+            super(out);
+            this.gzip = gzip;
+            Compressor pooled = (gzip ? GZIP_POOL : DEFLATE_POOL).poll();
+            this.compressor = pooled != null ? pooled : new Compressor(new Deflater(Deflater.DEFAULT_COMPRESSION, gzip), new byte[8192]);
+            this.crc = gzip ? new CRC32() : null;
+            if (gzip) {
+                out.write(GZIP_HEADER);
             }
-            try {
-                httpServer.bind(config.inetSocketAddress, config.webBacklog);
-            } catch (IOException e) {
-                throw new ServerException("Can't listen on port " + config.inetSocketAddress.getPort(), e);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (gzip) {
+                crc.update(b, off, len);
             }
+            Deflater deflater = compressor.deflater();
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
 
+        // what's been written so far goes out now, as for a stream of events
+        @Override
+        public void flush() throws IOException {
+            while (deflate(Deflater.SYNC_FLUSH) == compressor.buf().length) {
+                // more to come
+            }
+            out.flush();
+        }
 
-            httpServer.start();
-            serverState.start();
-            if (socketServer != null) {
-                simpleWebSocketServerThread = new Thread(socketServer::start);
-                simpleWebSocketServerThread.start();
-                //simpleWebSocketServerThread.setDaemon(true);
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Deflater deflater = compressor.deflater();
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+                if (gzip) {
+                    writeIntLE((int) crc.getValue());
+                    writeIntLE((int) deflater.getBytesRead());
+                }
+                out.close();
+            } finally {
+                deflater.reset();
+                if (!(gzip ? GZIP_POOL : DEFLATE_POOL).offer(compressor)) {
+                    deflater.end();
+                }
             }
-            return this;
         }
 
-        public WebServer stop() {
-            httpServer.stop(0);
-            if (simpleWebSocketServerThread != null) {
-                socketServer.stop();
-                simpleWebSocketServerThread.interrupt();
+        private int deflate(int flush) throws IOException {
+            byte[] buf = compressor.buf();
+            int n = compressor.deflater().deflate(buf, 0, buf.length, flush);
+            if (n > 0) {
+                out.write(buf, 0, n);
             }
-            return this;
+            return n;
         }
 
-        private static class ServerRequestContext implements RequestContext {
+        private void writeIntLE(int i) throws IOException {
+            out.write(i);
+            out.write(i >> 8);
+            out.write(i >> 16);
+            out.write(i >> 24);
+        }
+    }
 
-            private final Map<String, String> params;
-            private final DependencyManager dependencyManager;
-            private final ComponentCache requestCache;
-            private final Matcher matcher;
-            private final Attributes attributes;
+    // A response body written a piece at a time. Small writes gather in a buffer, and go to the socket when it fills
+    // or at flush(), rather than one by one
+    public static class ResponseStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buf;
+        private int count;
+        private boolean closed;
 
-            public ServerRequestContext(Map<String, String> params, DependencyManager dependencyManager, ComponentCache requestCache, Matcher matcher, Attributes attributes) {
-                this.params = params;
-                this.dependencyManager = dependencyManager;
-                this.requestCache = requestCache;
-                this.matcher = matcher;
-                this.attributes = attributes;
+        ResponseStream(OutputStream out) {
+            this(out, 16 * 1024);
+        }
+
+        ResponseStream(OutputStream out, int bufferSize) {
+            this.out = out;
+            this.buf = new byte[bufferSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                drain();
             }
+            buf[count++] = (byte) b;
+        }
 
-            @Override
-            public String getParam(String key) {
-                return params.get(key);
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buf.length) {
+                // no sense copying what fills the buffer by itself
+                drain();
+                out.write(b, off, len);
+                return;
             }
+            if (len > buf.length - count) {
+                drain();
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
 
-            @Override
-            @SuppressWarnings("unchecked")
-            public <T> T dep(Class<T> clazz) {
-                return dependencyManager.instantiateDep(clazz, requestCache, matcher);
+        // as UTF-8, straight into the buffer
+        public ResponseStream print(CharSequence text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                if (buf.length - count < 4) {
+                    drain();
+                }
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    buf[count++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[count++] = (byte) (0xC0 | c >> 6);
+                    buf[count++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    buf[count++] = (byte) (0xF0 | cp >> 18);
+                    buf[count++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    buf[count++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    buf[count++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    if (Character.isSurrogate(c)) {
+                        c = '\uFFFD'; // unpaired, which UTF-8 can't carry
+                    }
+                    buf[count++] = (byte) (0xE0 | c >> 12);
+                    buf[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buf[count++] = (byte) (0x80 | c & 0x3F);
+                }
             }
+            return this;
+        }
 
-            public void setAttribute(String key, Object value) {
-                attributes.setAttribute(key, value);
+        public ResponseStream println(CharSequence line) throws IOException {
+            print(line);
+            write('\n');
+            return this;
+        }
+
+        // everything written so far, out to the client now
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        // ends the body
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                drain();
+                out.close();
             }
+        }
 
-            public Object getAttribute(String key) {
-                return attributes.getAttribute(key);
+        private void drain() throws IOException {
+            if (count > 0) {
+                out.write(buf, 0, count);
+                count = 0;
             }
+        }
+    }
 
-            public Matcher getMatcher() {
-                return matcher;
+    public static class Response {
+
+        protected final HttpExchange exchange;
+        private final boolean headRequest;
+        private boolean compression;
+        private final int compressionThreshold;
+        private boolean autoETag;
+        private boolean ranges;
+        private final Map<String, String> mimeTypes;
+
+        public Response(HttpExchange exchange) {
+            this(exchange, Config.create());
+        }
+
+        public Response(HttpExchange exchange, Config config) {
+            this.exchange = exchange;
+            this.headRequest = exchange != null && "HEAD".equals(exchange.getRequestMethod());
+            this.compression = config.responseCompression;
+            this.compressionThreshold = config.compressionThreshold;
+            this.autoETag = config.autoETags;
+            this.mimeTypes = config.mimeTypes;
+        }
+
+        // for this response only, in place of Config's autoETags
+        public void setAutoETag(boolean autoETag) {
+            this.autoETag = autoETag;
+        }
+
+        // Sets the ETag, and if the client's If-None-Match already has it, answers 304 and returns true. Called before
+        // the work of building the body, that work can be skipped: if (res.notModified(version)) { return; }
+        public boolean notModified(String etag) {
+            String tag = etag.startsWith("\"") || etag.startsWith("W/\"") ? etag : "\"" + etag + "\"";
+            exchange.getResponseHeaders().set("ETag", tag);
+            String method = exchange.getRequestMethod();
+            if (!(method.equals("GET") || method.equals("HEAD")) || !ifNoneMatch(exchange.getRequestHeaders().get("If-None-Match"), tag)) {
+                return false;
+            }
+            sendResponse(304, -1, out -> { });
+            return true;
+        }
+
+        // RFC 9110's weak comparison, as If-None-Match uses: W/"x" and "x" are the same
+        static boolean ifNoneMatch(List<String> ifNoneMatch, String etag) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            String opaque = etag.substring(etag.indexOf('"'));
+            for (String header : ifNoneMatch) {
+                int i = 0;
+                while (i < header.length()) {
+                    char c = header.charAt(i);
+                    if (c == '*') {
+                        return true;
+                    } else if (c == '"') {
+                        int end = header.indexOf('"', i + 1);
+                        if (end < 0) {
+                            break;
+                        }
+                        if (header.regionMatches(i, opaque, 0, opaque.length()) && end + 1 == i + opaque.length()) {
+                            return true;
+                        }
+                        i = end + 1;
+                    } else {
+                        i++; // commas, spaces and W/ prefixes
+                    }
+                }
             }
+            return false;
         }
-    }
 
-    public static class ServerComposition implements WebServerContext {
-        private final WebServerContext server;
-        protected final String rootPath;
+        // for this response only, in place of Config's responseCompression
+        public void setCompression(boolean compression) {
+            this.compression = compression;
+        }
 
-        public ServerComposition(WebServer server) {
-            this.server = server;
-            this.rootPath = null;
+        // Answer a GET's Range header from this response's String, byte[] or ByteBuffer body. Off unless set, as a
+        // dynamic body needn't be the same from one request to the next. A Path, and so a static file, always is
+        public void setRanges(boolean ranges) {
+            this.ranges = ranges;
         }
 
-        public ServerComposition(WebServer server, String rootPath) {
-            this.server = server;
-            this.rootPath = rootPath;
+        public void write(String content) {
+            write(content, 200);
         }
 
-        @Override
-        public PathContext path(String basePath, Runnable runnable) {
-            return server.path(basePath, runnable);
+        public void write(String content, int statusCode) {
+            sendResponse(content, statusCode);
         }
 
-        @Override
-        public void sendErrorResponse(HttpExchange exchange, int code, String message) {
-            server.sendErrorResponse(exchange, code, message);
+        public void write(byte[] content) {
+            write(content, 200);
         }
 
-        @Override
-        public WebServerContext endPoint(HttpMethods method, String path, EndPoint endPoint) {
-            return server.endPoint(method, path, endPoint);
+        public void write(byte[] content, int statusCode) {
+            sendResponse(content, statusCode, false);
         }
 
-        @Override
-        public WebServerContext webSocket(String path, WebSocketMessageHandler wsHandler) {
-            return server.webSocket(path, wsHandler);
+        // from the buffer's position to its limit, which are left as they were
+        public void write(ByteBuffer content) {
+            write(content, 200);
         }
 
-        @Override
-        public WebServerContext filter(HttpMethods method, String path, Filter filter) {
-            return server.filter(method, path, filter);
+        public void write(ByteBuffer content, int statusCode) {
+            ByteBuffer remaining = content.duplicate();
+            if (ranges && sendRanges(statusCode, remaining.remaining(), (out, from, count) -> {
+                ByteBuffer range = remaining.duplicate().position(remaining.position() + (int) from).limit(remaining.position() + (int) (from + count));
+                Channels.newChannel(out).write(range);
+            })) {
+                return;
+            }
+            sendResponse(statusCode, remaining.remaining(), out -> {
+                if (remaining.hasArray()) {
+                    out.write(remaining.array(), remaining.arrayOffset() + remaining.position(), remaining.remaining());
+                } else {
+                    byte[] chunk = new byte[Math.min(remaining.remaining(), 64 * 1024)];
+                    while (remaining.hasRemaining()) {
+                        int n = Math.min(chunk.length, remaining.remaining());
+                        remaining.get(chunk, 0, n);
+                        out.write(chunk, 0, n);
+                    }
+                }
+            });
         }
 
-        @Override
-        public WebServerContext filter(String path, Filter filter) {
-            return server.filter(path, filter);
+        // of unknown length, so sent chunked. The stream is closed once written
+        public void write(InputStream content) {
+            write(content, -1, 200);
         }
 
-        @Override
-        public WebServerContext serveStaticFilesAsync(String basePath, String directory) {
-            return server.serveStaticFilesAsync(basePath, directory);
+        // exactly contentLength bytes of the stream, or chunked to its end if that's -1. The stream is closed once written
+        public void write(InputStream content, long contentLength, int statusCode) {
+            try (content) {
+                sendResponse(statusCode, contentLength, out -> {
+                    if (contentLength < 0) {
+                        content.transferTo(out);
+                        return;
+                    }
+                    byte[] chunk = new byte[(int) Math.min(Math.max(contentLength, 1), 64 * 1024)];
+                    for (long left = contentLength; left > 0; ) {
+                        int n = content.read(chunk, 0, (int) Math.min(chunk.length, left));
+                        if (n < 0) {
+                            throw new EOFException("Stream ended " + left + " bytes short of its length");
+                        }
+                        out.write(chunk, 0, n);
+                        left -= n;
+                    }
+                });
+            } catch (IOException e) {
+                throw new ServerException("Internal response error, for " + exchange.getRequestURI(), e);
+            }
         }
-    }
 
+        // with a Content-Type from the file's extension, unless one has been set already
+        public void write(Path file) {
+            write(file, 200);
+        }
 
-    /* ==========================
-     * Supporting Classes
-     * ==========================
-     */
-    public static class FilterEntry {
-        public final Pattern pattern;
-        public final Filter filter;
-        public final long whenDefined = System.nanoTime();
+        public void write(Path file, int statusCode) {
+            try {
+                if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+                    String contentType = MimeTypes.of(file.getFileName().toString(), mimeTypes);
+                    if (contentType == null) {
+                        contentType = Files.probeContentType(file);
+                    }
+                    if (contentType != null) {
+                        exchange.getResponseHeaders().set("Content-Type", contentType);
+                    }
+                }
+                if (!exchange.getResponseHeaders().containsKey("Last-Modified")) {
+                    exchange.getResponseHeaders().set("Last-Modified", HTTP_DATE.format(Files.getLastModifiedTime(file).toInstant()));
+                }
+                write(statusCode, Files.size(file), (out, from, count) -> transfer(file, from, count, out));
+            } catch (IOException e) {
+                throw new ServerException("Internal response error, for " + exchange.getRequestURI(), e);
+            }
+        }
 
-        public FilterEntry(Pattern pattern, Filter filter) {
-            this.pattern = pattern;
-            this.filter = filter;
+        // a body that can be read from anywhere in it, whole or just the Range asked for
+        private void write(int statusCode, long length, Ranges body) {
+            if (sendRanges(statusCode, length, body)) {
+                return;
+            }
+            sendResponse(statusCode, length, out -> body.writeRange(out, 0, length));
         }
 
-        public long getWhenDefined() {
-            return whenDefined;
+        public void setHeader(String name, String value) {
+            exchange.getResponseHeaders().set(name, value);
         }
-    }
 
-    public static class Request {
-        private final HttpExchange exchange;
-        private final String body;
+        public void json(Object value) {
+            json(json -> json.value(value), 200);
+        }
 
-        private Map<String, String> queryParams;
+        public void json(JsonWriter.Content content) {
+            json(content, 200);
+        }
 
-        public Request(HttpExchange exchange) {
-            this.exchange = exchange;
-            if (exchange != null) {
-                try {
-                    this.body = new String(exchange.getRequestBody().readAllBytes());
+        // A document that fits in the writer's buffer goes with a Content-Length, a bigger one is streamed chunked
+        // as the buffer fills
+        public void json(JsonWriter.Content content, int statusCode) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            OutputStream body = new OutputStream() {
+                private OutputStream out;
+
+                private OutputStream out() throws IOException {
+                    if (out == null) {
+                        out = openBody(statusCode, -1);
+                        if (out == null) {
+                            out = OutputStream.nullOutputStream();
+                        }
+                    }
+                    return out;
+                }
 
-                } catch (IOException e) {
-                    throw new ServerException("Internal request error, for " + exchange.getRequestURI(), e);
+                @Override
+                public void write(int b) throws IOException {
+                    out().write(b);
                 }
-            } else {
-                this.body = null;
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out().write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out().flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out().close();
+                }
+            };
+            JsonWriter json = new JsonWriter(body);
+            byte[] whole;
+            try {
+                content.writeTo(json);
+                whole = json.unflushed();
+                if (whole == null) {
+                    json.close();
+                }
+            } catch (IOException e) {
+                throw new ServerException("Internal response error, for " + exchange.getRequestURI(), e);
+            }
+            if (whole != null) {
+                sendResponse(whole, statusCode, false);
             }
         }
-        public String getCookie(String name) {
-            List<String> cookiesHeader = exchange.getRequestHeaders().get("Cookie");
-            if (cookiesHeader != null) {
-                for (String cookie : cookiesHeader) {
-                    String[] cookies = cookie.split(";");
-                    for (String c : cookies) {
-                        String[] keyValue = c.trim().split("=");
-                        if (keyValue.length > 1 && keyValue[0].equals(name)) {
-                            return c.trim().substring(keyValue[0].length()+1);
-                        }
+
+        public void sendResponse(String content, int statusCode) {
+            sendResponse(content.getBytes(StandardCharsets.UTF_8), statusCode, false);
+        }
+
+        public void sendResponseChunked(String content, int statusCode) {
+            sendResponse(content.getBytes(StandardCharsets.UTF_8), statusCode, true);
+        }
+
+        private void sendResponse(byte[] content, int statusCode, boolean chunked) {
+            if (autoETag && statusCode == 200 && (headRequest || "GET".equals(exchange.getRequestMethod()))
+                    && !exchange.getResponseHeaders().containsKey("ETag") && notModified(strongETag(content))) {
+                return;
+            }
+            if (!chunked && ranges && sendRanges(statusCode, content.length, (out, from, count) -> out.write(content, (int) from, (int) count))) {
+                return;
+            }
+            sendResponse(statusCode, chunked ? -1 : content.length, out -> out.write(content));
+        }
+
+        // count bytes of the file from position, without reading the rest of it or holding more than a buffer's
+        // worth. Exactly count, as that's the Content-Length already sent, even if the file has since grown
+        private static void transfer(Path file, long position, long count, OutputStream out) throws IOException {
+            try (FileChannel channel = FileChannel.open(file)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                for (long sent = 0; sent < count; ) {
+                    long n = channel.transferTo(position + sent, count - sent, target);
+                    if (n <= 0) {
+                        throw new EOFException(file + " is shorter than it was");
                     }
+                    sent += n;
                 }
             }
-            return null;
         }
 
-        public String getBody() { return body; }
-        public Map<String, List<String>> getHeaders() { return exchange.getRequestHeaders(); }
-        public String getPath() { return exchange.getRequestURI().getPath(); }
-        public String getQuery() {
-            if (exchange != null) {
-                return exchange.getRequestURI().getQuery();
+        private interface Ranges {
+            void writeRange(OutputStream out, long from, long count) throws IOException;
+        }
+
+        private static final int MAX_RANGES = 50;
+        private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+        // Answers a GET's Range header with a 206, or a 416 if none of it is in the body, and returns true. False to
+        // send the whole body instead: no Range, an If-Range that no longer holds, or a Range not worth honouring
+        private boolean sendRanges(int statusCode, long length, Ranges body) {
+            if (statusCode != 200 || !(headRequest || "GET".equals(exchange.getRequestMethod()))) {
+                return false;
             }
-            return "";
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null || headRequest || !ifRangeHolds()) {
+                return false;
+            }
+            long[] ranges = parseRanges(range, length);
+            if (ranges == null) {
+                return false;
+            }
+            if (ranges.length == 0) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                sendResponse(416, 0, out -> { });
+                return true;
+            }
+            if (ranges.length == 2) {
+                long from = ranges[0];
+                long count = ranges[1] - from + 1;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + ranges[1] + "/" + length);
+                sendResponse(206, count, out -> body.writeRange(out, from, count));
+                return true;
+            }
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(ThreadLocalRandom.current().nextLong());
+            String contentType = exchange.getResponseHeaders().getFirst("Content-Type");
+            byte[][] partHeaders = new byte[ranges.length / 2][];
+            byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            long total = end.length;
+            for (int i = 0; i < ranges.length; i += 2) {
+                partHeaders[i / 2] = ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                        + (contentType == null ? "" : "Content-Type: " + contentType + "\r\n")
+                        + "Content-Range: bytes " + ranges[i] + "-" + ranges[i + 1] + "/" + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                total += partHeaders[i / 2].length + ranges[i + 1] - ranges[i] + 1;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            sendResponse(206, total, out -> {
+                for (int i = 0; i < ranges.length; i += 2) {
+                    out.write(partHeaders[i / 2]);
+                    body.writeRange(out, ranges[i], ranges[i + 1] - ranges[i] + 1);
+                }
+                out.write(end);
+            });
+            return true;
         }
 
+        // If-Range's ETag (compared strongly) or date has to be this response's, else the client gets the whole body
+        private boolean ifRangeHolds() {
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (ifRange == null) {
+                return true;
+            }
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("W/")) {
+                return false;
+            }
+            String validator = exchange.getResponseHeaders().getFirst(ifRange.startsWith("\"") ? "ETag" : "Last-Modified");
+            return ifRange.equals(validator);
+        }
 
-        // TODO: NEEDED
-        public Map<String, String> getQueryParams() {
-            if (queryParams != null) {
-                return queryParams;
+        // first and last positions, in pairs. An empty array if none of the ranges are in the body, or null if the
+        // header is to be ignored: malformed, not in bytes, or in more pieces than anyone needs
+        static long[] parseRanges(String header, long length) {
+            header = header.trim();
+            if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+                return null;
             }
-            String query = getQuery();
-            if (query == null || query.isEmpty()) {
-                return Collections.emptyMap();
+            String[] specs = header.substring(6).split(",");
+            if (specs.length > MAX_RANGES) {
+                return null;
             }
-            this.queryParams = new HashMap<>();
-            String[] pairs = query.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
-                if (keyValue.length == 2) {
-                    queryParams.put(keyValue[0], keyValue[1]);
+            long[] ranges = new long[specs.length * 2];
+            int n = 0;
+            for (String spec : specs) {
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                try {
+                    if (first.isEmpty()) {
+                        // the last so many bytes
+                        long suffix = Long.parseLong(last);
+                        if (suffix < 0) {
+                            return null;
+                        }
+                        if (suffix > 0 && length > 0) {
+                            ranges[n++] = Math.max(0, length - suffix);
+                            ranges[n++] = length - 1;
+                        }
+                    } else {
+                        long from = Long.parseLong(first);
+                        long to = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                        if (from < 0 || to < from) {
+                            return null;
+                        }
+                        if (from < length) {
+                            ranges[n++] = from;
+                            ranges[n++] = Math.min(to, length - 1);
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
                 }
             }
-            return queryParams;
+            return Arrays.copyOf(ranges, n);
         }
-    }
 
-    public static class Response {
+        // two different CRCs, both intrinsics on most CPUs, and the length: quick to make, and a change in the body
+        // all but certainly changes it
+        private static String strongETag(byte[] content) {
+            CRC32C crc32c = new CRC32C();
+            crc32c.update(content);
+            CRC32 crc32 = new CRC32();
+            crc32.update(content);
+            return "\"" + Long.toHexString(crc32c.getValue() << 32 | crc32.getValue()) + "-" + Integer.toHexString(content.length) + "\"";
+        }
 
-        protected final HttpExchange exchange;
+        // Sends the headers and gives a stream for a body written a piece at a time, as for exports. The server
+        // does the chunked framing
+        public ResponseStream stream() {
+            return stream(200);
+        }
 
-        public Response(HttpExchange exchange) {
-            this.exchange = exchange;
+        public ResponseStream stream(int statusCode) {
+            try {
+                OutputStream out = openBody(statusCode, -1);
+                return new ResponseStream(out == null ? OutputStream.nullOutputStream() : out);
+            } catch (IOException e) {
+                throw new ServerException("Internal response error, for " + exchange.getRequestURI(), e);
+            }
         }
 
-        public void write(String content) {
-            write(content, 200);
+        private interface Body {
+            void writeTo(OutputStream out) throws IOException;
         }
 
-        public void write(String content, int statusCode) {
-            sendResponse(content, statusCode);
+        // Every response with a body goes through here: with a Content-Length when the length is known, chunked
+        // when it's -1
+        private void sendResponse(int statusCode, long length, Body body) {
+            try {
+                OutputStream out = openBody(statusCode, length);
+                if (out != null) {
+                    try (out) {
+                        body.writeTo(out);
+                    }
+                }
+            } catch (IOException e) {
+                throw new ServerException("Internal response error, for " + exchange.getRequestURI(), e);
+            }
         }
 
-        public void setHeader(String name, String value) {
-            exchange.getResponseHeaders().set(name, value);
+        // Sends the headers, compressing if that's on and worthwhile, and gives the stream for the body - or null if
+        // there's to be no body
+        private OutputStream openBody(int statusCode, long length) throws IOException {
+            boolean noBody = statusCode == 204 || statusCode == 304;
+            // ranges are of the uncompressed body
+            String coding = noBody || statusCode == 206 ? null : compressionFor(length);
+            if (coding != null) {
+                exchange.getResponseHeaders().set("Content-Encoding", coding);
+                exchange.getResponseHeaders().remove("Content-Length");
+                length = -1;
+                // the compressed bytes aren't the ones a strong ETag vouches for, but they mean the same
+                String etag = exchange.getResponseHeaders().getFirst("ETag");
+                if (etag != null && etag.startsWith("\"")) {
+                    exchange.getResponseHeaders().set("ETag", "W/" + etag);
+                }
+            }
+            if (headRequest) {
+                // same headers as the GET would have had, but no body
+                if (length >= 0 && !noBody) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                }
+                drainRequestBodyBeforeHeaders();
+                exchange.sendResponseHeaders(statusCode, -1);
+                return null;
+            }
+            if (noBody || length == 0) {
+                // the exchange is over as soon as these headers go
+                drainRequestBodyBeforeHeaders();
+                exchange.sendResponseHeaders(statusCode, -1);
+                return null;
+            }
+            // the JDK's server takes 0 to mean chunked
+            exchange.sendResponseHeaders(statusCode, length < 0 ? 0 : length);
+            OutputStream out = new ResponseBody(exchange.getResponseBody());
+            return coding == null ? out : new CompressingOutputStream(out, coding.equals("gzip"));
         }
 
-        public void sendResponse(String content, int statusCode) {
-            sendResponse(content.getBytes(StandardCharsets.UTF_8), statusCode, false);
+        // gzip or deflate, if compression is on, the client takes one of them, and the body is worth it. Else null
+        private String compressionFor(long length) {
+            if (!compression || exchange.getResponseHeaders().containsKey("Content-Encoding")
+                    || !compressibleType(exchange.getResponseHeaders().getFirst("Content-Type"))) {
+                return null;
+            }
+            // whether or not this one is compressed, it could have been, so caches must key on Accept-Encoding
+            List<String> vary = exchange.getResponseHeaders().get("Vary");
+            if (vary == null || vary.stream().noneMatch(v -> v.toLowerCase(Locale.ROOT).contains("accept-encoding"))) {
+                exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+            }
+            if (length >= 0 && length < compressionThreshold) {
+                return null;
+            }
+            return acceptedCoding(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
         }
 
-        public void sendResponseChunked(String content, int statusCode) {
-            sendResponse(content.getBytes(StandardCharsets.UTF_8), statusCode, true);
+        // formats that are compressed already, and don't shrink any further
+        private static boolean compressibleType(String contentType) {
+            if (contentType == null) {
+                return true;
+            }
+            String type = contentType.toLowerCase(Locale.ROOT);
+            int semicolon = type.indexOf(';');
+            type = (semicolon < 0 ? type : type.substring(0, semicolon)).trim();
+            if (type.startsWith("image/")) {
+                return type.equals("image/svg+xml") || type.equals("image/bmp") || type.equals("image/x-icon");
+            }
+            if (type.startsWith("audio/") || type.startsWith("video/") || type.startsWith("font/woff")) {
+                return false;
+            }
+            return switch (type) {
+                case "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+                     "application/x-xz", "application/zstd", "application/x-7z-compressed", "application/x-rar-compressed",
+                     "application/pdf", "application/octet-stream" -> false;
+                default -> true;
+            };
         }
 
-        private void sendResponse(byte[] content, int statusCode, boolean chunked) {
-            try {
-                if (chunked) {
-                    exchange.getResponseHeaders().set("Transfer-Encoding", "chunked");
-                    exchange.sendResponseHeaders(statusCode, 0);
-                    OutputStream out = exchange.getResponseBody();
-                    writeChunk(out, content);
-                    writeChunk(out, new byte[0]); // End of chunks
-                    out.close();
-                } else {
-                    exchange.sendResponseHeaders(statusCode, content.length);
-                    exchange.getResponseBody().write(content);
-                    exchange.getResponseBody().close();
+        // the client's preference by q-value, gzip winning a tie
+        static String acceptedCoding(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return null;
+            }
+            double gzip = -1;
+            double deflate = -1;
+            double any = -1;
+            for (String coding : acceptEncoding.split(",")) {
+                String[] params = coding.split(";");
+                double q = 1;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                switch (params[0].trim().toLowerCase(Locale.ROOT)) {
+                    case "gzip", "x-gzip" -> gzip = q;
+                    case "deflate" -> deflate = q;
+                    case "*" -> any = q;
+                    default -> { }
                 }
-            } catch (IOException e) {
-                throw new ServerException("Internal response error, for " + exchange.getRequestURI(), e);
             }
+            gzip = gzip < 0 ? any : gzip;
+            deflate = deflate < 0 ? any : deflate;
+            if (gzip > 0 && gzip >= deflate) {
+                return "gzip";
+            }
+            return deflate > 0 ? "deflate" : null;
         }
 
+        // After sendResponseHeaders(code, 0) the JDK's server frames the chunks itself, so this only writes the bytes
+        // and flushes them. The empty chunk that used to end the body does nothing - closing the stream ends it.
+        @Deprecated
         public void writeChunk(OutputStream out, byte[] chunk) throws IOException {
-            String chunkSize = Integer.toHexString(chunk.length) + "\r\n";
-            out.write(chunkSize.getBytes(StandardCharsets.US_ASCII));
-            out.write(chunk);
-            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
-            out.flush();
+            if (chunk.length > 0) {
+                out.write(chunk);
+                out.flush();
+            }
         }
 
         public OutputStream getResponseBody() {
-            return this.exchange.getResponseBody();
+            return headRequest ? OutputStream.nullOutputStream() : new ResponseBody(this.exchange.getResponseBody());
         }
 
         public void sendResponseHeaders(int i, int i1) throws IOException {
-            exchange.sendResponseHeaders(i, i1);
+            if (headRequest || i1 == -1) {
+                drainRequestBodyBeforeHeaders();
+            }
+            exchange.sendResponseHeaders(i, headRequest ? -1 : i1);
+        }
+
+        // The response's body. The request's can still be read while this is written - to echo or transform it, say -
+        // and what's left of it is read off only as this closes, which is when the exchange is over
+        private final class ResponseBody extends FilterOutputStream {
+
+            private ResponseBody(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                drainRequestBody();
+                super.close();
+            }
+        }
+
+        // The request body is only read if the endPoint asks for it, and the JDK's server drops a keep-alive
+        // connection that still has more than 64KB of it unread when the exchange ends - without telling the
+        // client. So read off the rest, but no more than MAX_SWALLOW of it whatever the body size limit, as a client
+        // could otherwise keep this thread reading for as long as it cares to send. False if that wasn't all of it,
+        // so that a response whose headers haven't gone yet can say the connection is closing; past them, the JDK
+        // closes it anyway. The JDK only closes the request stream it made, so an inflating one is closed here too,
+        // ending its Inflater.
+        private boolean drainRequestBody() {
+            InputStream body = exchange.getRequestBody();
+            InflatingInputStream inflating = body instanceof InflatingInputStream i ? i : null;
+            if (inflating != null) {
+                body = inflating.compressed; // no sense inflating what nobody will read
+            }
+            boolean drained = true;
+            try {
+                byte[] buffer = new byte[8192];
+                long swallowed = 0;
+                for (int n; swallowed <= WebServer.MAX_SWALLOW && (n = body.read(buffer)) >= 0; ) {
+                    swallowed += n;
+                }
+                drained = swallowed <= WebServer.MAX_SWALLOW;
+            } catch (PayloadTooLargeException e) {
+                drained = false;
+            } catch (IOException e) {
+                // already closed by the endPoint, or the client has gone
+            }
+            if (inflating != null) {
+                try {
+                    inflating.close();
+                } catch (IOException e) {
+                    // the client has gone
+                }
+            }
+            return drained;
+        }
+
+        private void drainRequestBodyBeforeHeaders() {
+            if (!drainRequestBody()) {
+                exchange.getResponseHeaders().set("Connection", "close");
+            }
         }
     }
 
@@ -1002,6 +5389,13 @@ public class Tiny {
         }
     }
 
+    // thrown from a request body's stream once more than the route's maxBodySize has been read from it
+    public static class PayloadTooLargeException extends IOException {
+        public PayloadTooLargeException(long maxBodySize) {
+            super("Request body is larger than " + maxBodySize + " bytes");
+        }
+    }
+
     public static class ServerException extends RuntimeException {
         public ServerException(String message, Throwable cause) {
             super(message, cause);
@@ -1014,6 +5408,74 @@ public class Tiny {
 
     public record FilterStat (String path, String result, long duration) {}
 
+    /**
+     * A size-bounded, least-recently-used cache that is safe for concurrent use. Keys are spread across
+     * independently locked stripes, each an access-ordered LinkedHashMap holding its share of maxSize.
+     */
+    public static class BoundedCache<K, V> {
+        private final List<LinkedHashMap<K, V>> stripes;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        public BoundedCache(int maxSize) {
+            int stripeCount = Math.max(1, Math.min(16, maxSize / 64));
+            int perStripe = Math.max(1, maxSize / stripeCount);
+            stripes = new ArrayList<>(stripeCount);
+            for (int i = 0; i < stripeCount; i++) {
+                stripes.add(new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                        return size() > perStripe;
+                    }
+                });
+            }
+        }
+
+        private LinkedHashMap<K, V> stripeFor(Object key) {
+            int h = key.hashCode();
+            return stripes.get(((h ^ (h >>> 16)) & 0x7fffffff) % stripes.size());
+        }
+
+        public V get(K key) {
+            LinkedHashMap<K, V> stripe = stripeFor(key);
+            V value;
+            synchronized (stripe) {
+                value = stripe.get(key);
+            }
+            if (value == null) {
+                misses.increment();
+            } else {
+                hits.increment();
+            }
+            return value;
+        }
+
+        public void put(K key, V value) {
+            LinkedHashMap<K, V> stripe = stripeFor(key);
+            synchronized (stripe) {
+                stripe.put(key, value);
+            }
+        }
+
+        public int size() {
+            int size = 0;
+            for (LinkedHashMap<K, V> stripe : stripes) {
+                synchronized (stripe) {
+                    size += stripe.size();
+                }
+            }
+            return size;
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+    }
+
 
     /* ==========================
      * WebSocket Classes
@@ -1222,7 +5684,7 @@ public class Tiny {
                                 BAD_ORIGIN.handleMessage(null, sender, null);
                             } else {
                                 ComponentCache requestCache = new DefaultComponentCache(dependencyManager.cache);
-                                RequestContext ctx = new WebServer.ServerRequestContext(new HashMap<>(), dependencyManager, requestCache, null, new Attributes(null));
+                                RequestContext ctx = new WebServer.ServerRequestContext(path, null, null, dependencyManager, requestCache, null, new Attributes(null));
                                 getHandler(path).handleMessage(payload, sender, ctx); // could be 404 handler
 
                             }
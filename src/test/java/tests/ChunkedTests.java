@@ -17,9 +17,14 @@
 package tests;
 
 import com.paulhammant.tiny.Tiny;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
 import org.forgerock.cuppa.Test;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
@@ -41,22 +46,41 @@ public class ChunkedTests {
                 webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
                     endPoint(Tiny.HttpMethods.GET, "/chunked", (req, res, ctx) -> {
                         Random random = new Random();
-                        OutputStream out = res.getResponseBody();
-                        res.setHeader("Transfer-Encoding", "chunked");
-
-                        try {
-                            res.sendResponseHeaders(200, 0);
+                        try (Tiny.ResponseStream out = res.stream()) {
                             for (int i = 0; i < 10; i++) {
                                 int number = random.nextInt();
                                 totalSum[0] = totalSum[0].add(BigDecimal.valueOf(number));
-                                String numberString = Integer.toString(number);
-                                res.writeChunk(out, numberString.getBytes(StandardCharsets.UTF_8));
+                                out.println(Integer.toString(number));
+                                if (i == 4) {
+                                    out.flush(); // the first half goes out now
+                                }
+                            }
+                        } catch (IOException e) {
+                            throw new AssertionError("IOE during chunk testing 2", e);
+                        }
+                    });
+                    endPoint(Tiny.HttpMethods.GET, "/write-chunk", (req, res, ctx) -> {
+                        OutputStream out = res.getResponseBody();
+                        try {
+                            res.sendResponseHeaders(200, 0);
+                            for (int i = 1; i <= 3; i++) {
+                                res.writeChunk(out, (i + "\n").getBytes(StandardCharsets.UTF_8));
                             }
-
                             res.writeChunk(out, new byte[0]); // End of chunks
                             out.close();
                         } catch (IOException e) {
-                            throw new AssertionError("IOE during chunk testing 2", e);
+                            throw new AssertionError("IOE during chunk testing", e);
+                        }
+                    });
+                    endPoint(Tiny.HttpMethods.POST, "/shout", (req, res, ctx) -> {
+                        // the response is opened first, then the request is read as it goes out
+                        try (Tiny.ResponseStream out = res.stream()) {
+                            BufferedReader in = new BufferedReader(new InputStreamReader(req.getBodyStream(), StandardCharsets.UTF_8));
+                            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                                out.println(line.toUpperCase());
+                            }
+                        } catch (IOException e) {
+                            throw new AssertionError("IOE during chunk testing 3", e);
                         }
                     });
                 }};
@@ -64,40 +88,39 @@ public class ChunkedTests {
             });
 
             it("Then it should return the response in chunks", () -> {
-                int i = 0;
                 try (okhttp3.Response response = httpGet("/chunked")) {
                     assertThat(response.code(), equalTo(200));
-                    String responseBody = response.body().string();
-                    // OkHttp reads all the chunks into one for you
-                    // Split the response back into chunks
-                    String[] parts = responseBody.split("\r\n|\n");
+                    assertThat(response.header("Transfer-Encoding"), equalTo("chunked"));
+                    // OkHttp reads all the chunks into one for you, with no chunk framing left in it
+                    String[] lines = response.body().string().split("\n");
+                    assertThat(lines.length, equalTo(10));
                     BigDecimal calculatedSum = BigDecimal.ZERO;
-                    String sumPart = "";
-
-                    int sz = 0;
-                    for (String part : parts) {
-                        if (part.matches("^[0-9a-fA-F]$")) {
-                            sz = Integer.valueOf(part, 16);
-                            //System.out.println("SZ " + sz);
-                            // Skip chunk size lines
-                            continue;
-                        } else if (!part.isEmpty()) {
-                            try {
-                                // Ensure the part is a valid integer
-                                String num = part.trim();
-                                //ystem.out.println("num " + num);
-                                assertThat(num.length(), equalTo(sz));
-                                calculatedSum = calculatedSum.add(BigDecimal.valueOf(Integer.parseInt(num)));
-                            } catch (NumberFormatException e) {
-                                throw new AssertionError(e.getMessage(), e);
-                            }
-                        }
+                    for (String line : lines) {
+                        calculatedSum = calculatedSum.add(BigDecimal.valueOf(Integer.parseInt(line)));
                     }
-
                     assertThat(calculatedSum, equalTo(totalSum[0]));
                 }
             });
 
+            it("Then writeChunk should leave the chunk framing to the server", () -> {
+                try (okhttp3.Response response = httpGet("/write-chunk")) {
+                    assertThat(response.body().string(), equalTo("1\n2\n3\n"));
+                }
+            });
+
+            it("Then the request body should still be readable once the response stream is open", () -> {
+                StringBuilder lines = new StringBuilder();
+                for (int i = 0; i < 10_000; i++) {
+                    lines.append("line ").append(i).append('\n');
+                }
+                try (okhttp3.Response response = new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                        .url("http://localhost:8080/shout")
+                        .post(RequestBody.create(lines.toString(), MediaType.get("text/plain"))).build()).execute()) {
+                    assertThat(response.code(), equalTo(200));
+                    assertThat(response.body().string(), equalTo(lines.toString().toUpperCase()));
+                }
+            });
+
             after(() -> {
                 webServer.stop();
                 webServer = null;
@@ -55,6 +55,21 @@ public class ConfigTests {
                Tiny.Config config = Tiny.Config.create().withSocketTimeoutMillis(60000);
                 assertThat(config.socketTimeoutMs, equalTo(60000));
             });
+
+            it("should set route cache size", () -> {
+               Tiny.Config config = Tiny.Config.create().withRouteCacheSize(1000);
+                assertThat(config.routeCacheSize, equalTo(1000));
+            });
+
+            it("should set linear-time matching", () -> {
+               Tiny.Config config = Tiny.Config.create().withLinearTimeMatching(true);
+                assertThat(config.linearTimeMatching, equalTo(true));
+            });
+
+            it("should set max request body size", () -> {
+               Tiny.Config config = Tiny.Config.create().withMaxRequestBodySize(1024);
+                assertThat(config.maxRequestBodySize, equalTo(1024L));
+            });
         });
     }
 }
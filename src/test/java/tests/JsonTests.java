@@ -0,0 +1,170 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) Paul Hammant, 2024
+ */
+
+package tests;
+
+import com.paulhammant.tiny.Tiny;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import org.forgerock.cuppa.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static com.paulhammant.tiny.Tiny.HttpMethods.GET;
+import static com.paulhammant.tiny.Tiny.HttpMethods.POST;
+import static org.forgerock.cuppa.Cuppa.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static tests.Suite.httpGet;
+
+@Test
+public class JsonTests {
+    Tiny.WebServer webServer;
+
+    {
+        describe("Given a JsonReader", () -> {
+            it("Then it should pull tokens one at a time", () -> {
+                Tiny.JsonReader json = new Tiny.JsonReader(new StringReader("{\"name\": \"Zoë\", \"scores\": [1, 2.5], \"extra\": {\"x\": null}}"));
+                json.beginObject();
+                assertThat(json.nextName(), equalTo("name"));
+                assertThat(json.nextString(), equalTo("Zoë"));
+                assertThat(json.nextName(), equalTo("scores"));
+                json.beginArray();
+                assertThat(json.nextLong(), equalTo(1L));
+                assertThat(json.nextDouble(), equalTo(2.5));
+                json.endArray();
+                assertThat(json.nextName(), equalTo("extra"));
+                json.skipValue();
+                json.endObject();
+                assertThat(json.peek(), equalTo(Tiny.JsonReader.Token.END_DOCUMENT));
+            });
+            it("Then it should read a value as Maps and Lists", () -> {
+                Object value = new Tiny.JsonReader(new StringReader("[{\"a\": true}, \"\\u00e9\\n\", -3, 1e2]")).readValue();
+                assertThat(value, equalTo(List.of(Map.of("a", true), "é\n", -3L, 100.0)));
+            });
+            it("Then it should reject malformed JSON", () -> {
+                try {
+                    new Tiny.JsonReader(new StringReader("[1, 2,]")).readValue();
+                    throw new AssertionError("should have failed");
+                } catch (IOException e) {
+                    assertThat(e.getMessage(), containsString("Malformed JSON"));
+                }
+            });
+        });
+        describe("Given a JsonWriter", () -> {
+            it("Then it should write escaped UTF-8", () -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (Tiny.JsonWriter json = new Tiny.JsonWriter(out)) {
+                    json.beginObject().name("quote").value("say \"hi\"\n").name("list").value(List.of(1, "€", false)).endObject();
+                }
+                assertThat(out.toString(StandardCharsets.UTF_8), equalTo("{\"quote\":\"say \\\"hi\\\"\\n\",\"list\":[1,\"€\",false]}"));
+            });
+        });
+        describe("Given a Tiny web server with JSON endPoints", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    endPoint(POST, "/total", (req, res, ctx) -> {
+                        long total = 0;
+                        try {
+                            Tiny.JsonReader json = req.json();
+                            json.beginArray();
+                            while (json.hasNext()) {
+                                total += json.nextLong();
+                            }
+                            json.endArray();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        long sum = total;
+                        res.json(json -> json.beginObject().name("total").value(sum).endObject());
+                    });
+                    endPoint(GET, "/numbers", (req, res, ctx) -> {
+                        res.json(json -> {
+                            json.beginArray();
+                            for (int i = 0; i < 100_000; i++) {
+                                json.value(i);
+                            }
+                            json.endArray();
+                        });
+                    });
+                    endPoint(POST, "/doubled", (req, res, ctx) -> {
+                        // each number is written out as it's read, so the response streams while the request is parsed
+                        Tiny.JsonReader in = req.json();
+                        res.json(json -> {
+                            json.beginArray();
+                            in.beginArray();
+                            while (in.hasNext()) {
+                                json.value(in.nextLong() * 2);
+                            }
+                            in.endArray();
+                            json.endArray();
+                        });
+                    });
+                }}.start();
+            });
+            it("Then a JSON request body should be read and a JSON response written", () -> {
+                try (okhttp3.Response response = new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                        .url("http://localhost:8080/total")
+                        .post(RequestBody.create("[1, 2, 3]", MediaType.get("application/json"))).build()).execute()) {
+                    assertThat(response.header("Content-Type"), equalTo("application/json"));
+                    assertThat(response.header("Content-Length"), equalTo("11"));
+                    assertThat(response.body().string(), equalTo("{\"total\":6}"));
+                }
+            });
+            it("Then a JSON response bigger than the buffer should be streamed", () -> {
+                try (okhttp3.Response response = httpGet("/numbers")) {
+                    assertThat(response.header("Transfer-Encoding"), equalTo("chunked"));
+                    Object numbers = new Tiny.JsonReader(response.body().byteStream()).readValue();
+                    assertThat(((List<?>) numbers).size(), equalTo(100_000));
+                }
+            });
+            it("Then a big JSON request should be read as a big JSON response streams out", () -> {
+                StringBuilder numbers = new StringBuilder("[");
+                for (int i = 0; i < 40_000; i++) {
+                    numbers.append(i == 0 ? "" : ",").append(i);
+                }
+                numbers.append(']');
+                try (okhttp3.Response response = new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                        .url("http://localhost:8080/doubled")
+                        .post(RequestBody.create(numbers.toString(), MediaType.get("application/json"))).build()).execute()) {
+                    assertThat(response.code(), equalTo(200));
+                    List<?> doubled = (List<?>) new Tiny.JsonReader(response.body().byteStream()).readValue();
+                    assertThat(doubled.size(), equalTo(40_000));
+                    assertThat(((Number) doubled.get(39_999)).longValue(), equalTo(79_998L));
+                }
+            });
+            it("Then malformed JSON in the request should be a 500", () -> {
+                try (okhttp3.Response response = new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                        .url("http://localhost:8080/total")
+                        .post(RequestBody.create("[1, 2", MediaType.get("application/json"))).build()).execute()) {
+                    assertThat(response.code(), equalTo(500));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) Paul Hammant, 2024
+ */
+
+package tests;
+
+import com.paulhammant.tiny.Tiny;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.forgerock.cuppa.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.paulhammant.tiny.Tiny.FilterAction.STOP;
+import static com.paulhammant.tiny.Tiny.HttpMethods.POST;
+import static org.forgerock.cuppa.Cuppa.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+@Test
+public class RequestBodyTests {
+    Tiny.WebServer webServer;
+    InputStream previousBody;
+    Path uploaded;
+
+    {
+        describe("Given a Tiny web server with endPoints reading the request body different ways", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    endPoint(POST, "/string", (req, res, ctx) -> {
+                        res.write("Got " + req.getBody() + " in " + req.getBodyBytes().length + " bytes");
+                    });
+                    endPoint(POST, "/stream", (req, res, ctx) -> {
+                        long count = 0;
+                        try (InputStream in = req.getBodyStream()) {
+                            byte[] buf = new byte[8192];
+                            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                                count += n;
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        res.write("Streamed " + count + " bytes");
+                    });
+                    endPoint(POST, "/ignored", (req, res, ctx) -> {
+                        res.write("Didn't read it");
+                    });
+                    endPoint(POST, "/form", (req, res, ctx) -> {
+                        res.write("Form: " + req.getFormParams() + ", colours: " + req.getFormParamValues("colour"));
+                    });
+                    endPoint(POST, "/both", (req, res, ctx) -> {
+                        req.getBodyStream();
+                        req.getBody();
+                    });
+                    endPoint(POST, "/echo", (req, res, ctx) -> {
+                        // the response is under way before the request has been read
+                        try {
+                            res.sendResponseHeaders(200, 0);
+                            try (OutputStream out = res.getResponseBody()) {
+                                req.getBodyStream().transferTo(out);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }}.start();
+            });
+            it("Then the body should be decoded with the charset named in Content-Type", () -> {
+                try (okhttp3.Response response = httpPost("/string", "text/plain; charset=ISO-8859-1", "café".getBytes(StandardCharsets.ISO_8859_1))) {
+                    assertThat(response.body().string(), equalTo("Got café in 4 bytes"));
+                }
+            });
+            it("Then the body should be decoded as UTF-8 when Content-Type has no charset", () -> {
+                try (okhttp3.Response response = httpPost("/string", "text/plain", "café".getBytes(StandardCharsets.UTF_8))) {
+                    assertThat(response.body().string(), equalTo("Got café in 5 bytes"));
+                }
+            });
+            it("Then a url-encoded form body should be parsed into its fields", () -> {
+                try (okhttp3.Response response = httpPost("/form", "application/x-www-form-urlencoded",
+                        "name=Jos%C3%A9+Smith&colour=red&colour=blue".getBytes(StandardCharsets.UTF_8))) {
+                    assertThat(response.body().string(), equalTo("Form: {name=José Smith, colour=red}, colours: [red, blue]"));
+                }
+            });
+            it("Then a large body should be readable as a stream", () -> {
+                try (okhttp3.Response response = httpPost("/stream", "application/octet-stream", new byte[5_000_000])) {
+                    assertThat(response.body().string(), equalTo("Streamed 5000000 bytes"));
+                }
+            });
+            it("Then an endPoint need not read the body at all", () -> {
+                try (okhttp3.Response response = httpPost("/ignored", "application/octet-stream", new byte[100_000])) {
+                    assertThat(response.body().string(), equalTo("Didn't read it"));
+                }
+            });
+            it("Then a large body the endPoint doesn't read should not be read off to the end", () -> {
+                long contentLength = 200_000_000;
+                assertThat(bytesSent("/ignored", contentLength) < contentLength, equalTo(true));
+            });
+            it("Then the body can still be read once the response has started", () -> {
+                byte[] body = new byte[200_000];
+                new Random(1).nextBytes(body);
+                try (okhttp3.Response response = httpPost("/echo", "application/octet-stream", body)) {
+                    assertThat(response.body().bytes(), equalTo(body));
+                }
+            });
+            it("Then the body can't be had in full once it has been streamed", () -> {
+                try (okhttp3.Response response = httpPost("/both", "text/plain", "x".getBytes(StandardCharsets.UTF_8))) {
+                    assertThat(response.code(), equalTo(500));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a Tiny web server with a request body size limit, and a route with a bigger one", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080).withMaxRequestBodySize(1000)) {{
+                    endPoint(POST, "/echo", (req, res, ctx) -> {
+                        res.write("Got " + req.getBodyBytes().length + " bytes");
+                    });
+                    endPoint(POST, "/upload", 10_000_000, (req, res, ctx) -> {
+                        res.write("Uploaded " + req.getBodyBytes().length + " bytes");
+                    });
+                    endPoint(POST, "/quiet-upload", new Tiny.UncompressedEndPoint(new Tiny.BodyLimitedEndPoint(10_000_000, (req, res, ctx) -> {
+                        res.write("Uploaded " + req.getBodyBytes().length + " bytes quietly");
+                    })));
+                }}.start();
+            });
+            it("Then a body within the limit should be accepted", () -> {
+                try (okhttp3.Response response = httpPost("/echo", "application/octet-stream", new byte[1000])) {
+                    assertThat(response.body().string(), equalTo("Got 1000 bytes"));
+                }
+            });
+            it("Then a Content-Length over the limit should be a 413", () -> {
+                try (okhttp3.Response response = httpPost("/echo", "application/octet-stream", new byte[1001])) {
+                    assertThat(response.code(), equalTo(413));
+                    assertThat(response.body().string(), equalTo("Payload too large"));
+                }
+            });
+            it("Then a chunked body over the limit should be a 413", () -> {
+                try (okhttp3.Response response = httpPostChunked("/echo", new byte[5000])) {
+                    assertThat(response.code(), equalTo(413));
+                }
+            });
+            it("Then the route's own limit should apply to it", () -> {
+                try (okhttp3.Response response = httpPost("/upload", "application/octet-stream", new byte[5_000_000])) {
+                    assertThat(response.body().string(), equalTo("Uploaded 5000000 bytes"));
+                }
+            });
+            it("Then the route's own limit should apply to it when it's wrapped in an UncompressedEndPoint", () -> {
+                try (okhttp3.Response response = httpPost("/quiet-upload", "application/octet-stream", new byte[5_000_000])) {
+                    assertThat(response.body().string(), equalTo("Uploaded 5000000 bytes quietly"));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a Tiny web server with a limit on inflated request bodies", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080).withMaxInflatedRequestBodySize(1_000_000)) {{
+                    endPoint(POST, "/json", (req, res, ctx) -> {
+                        res.write("Got " + req.getBody());
+                    });
+                    endPoint(POST, "/small-upload", 10_000, (req, res, ctx) -> {
+                        res.write("Got " + req.getBodyBytes().length + " bytes");
+                    });
+                    endPoint(POST, "/big-upload", 100_000_000, (req, res, ctx) -> {
+                        res.write("Got " + req.getBodyBytes().length + " bytes");
+                    });
+                    endPoint(POST, "/first-byte", (req, res, ctx) -> {
+                        // reads one byte and leaves the rest, and says whether the last request's stream was closed
+                        String previous = previousBody == null ? "none" : isClosed(previousBody) ? "closed" : "open";
+                        previousBody = req.getBodyStream();
+                        try {
+                            res.write("First byte: " + (char) previousBody.read() + ", previous body: " + previous);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }}.start();
+            });
+            it("Then a gzipped body should be inflated before the endPoint reads it", () -> {
+                try (okhttp3.Response response = httpPostEncoded("/json", "gzip", gzip("{\"name\":\"café\"}".getBytes(StandardCharsets.UTF_8)))) {
+                    assertThat(response.body().string(), equalTo("Got {\"name\":\"café\"}"));
+                }
+            });
+            it("Then a body that inflates past the limit should be a 413", () -> {
+                try (okhttp3.Response response = httpPostEncoded("/json", "gzip", gzip(new byte[50_000_000]))) {
+                    assertThat(response.code(), equalTo(413));
+                }
+            });
+            it("Then a route's own limit should be on the compressed body, not the inflated one", () -> {
+                try (okhttp3.Response response = httpPostEncoded("/small-upload", "gzip", gzip(new byte[500_000]))) {
+                    assertThat(response.body().string(), equalTo("Got 500000 bytes"));
+                }
+            });
+            it("Then a route's own limit should not raise the limit on inflated bodies", () -> {
+                try (okhttp3.Response response = httpPostEncoded("/big-upload", "gzip", gzip(new byte[50_000_000]))) {
+                    assertThat(response.code(), equalTo(413));
+                }
+            });
+            it("Then the inflating stream should be closed once the exchange has ended", () -> {
+                byte[] body = "{\"name\":\"café\"}".getBytes(StandardCharsets.UTF_8);
+                try (okhttp3.Response response = httpPostEncoded("/first-byte", "deflate", rawDeflate(body))) {
+                    assertThat(response.body().string(), equalTo("First byte: {, previous body: none"));
+                }
+                try (okhttp3.Response response = httpPostEncoded("/first-byte", "gzip", gzip(body))) {
+                    assertThat(response.body().string(), equalTo("First byte: {, previous body: closed"));
+                }
+                try (okhttp3.Response response = httpPostEncoded("/first-byte", "gzip", gzip(body))) {
+                    assertThat(response.body().string(), equalTo("First byte: {, previous body: closed"));
+                }
+            });
+            it("Then an encoding that can't be inflated should be a 415", () -> {
+                try (okhttp3.Response response = httpPostEncoded("/json", "br", new byte[10])) {
+                    assertThat(response.code(), equalTo(415));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a Tiny web server with an endPoint reading multipart/form-data uploads", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080).withMultipartSpillThreshold(1000)) {{
+                    endPoint(POST, "/upload", (req, res, ctx) -> {
+                        StringBuilder sb = new StringBuilder();
+                        try {
+                            Tiny.MultipartReader parts = req.getMultipart();
+                            for (Tiny.MultipartPart part = parts.next(); part != null; part = parts.next()) {
+                                sb.append(part.getName()).append(": ");
+                                if (part.isInMemory()) {
+                                    sb.append(part.getString());
+                                } else {
+                                    sb.append(part.getFilename()).append(" of ").append(Files.size(part.getFile())).append(" bytes in a temp file");
+                                    uploaded = part.getFile();
+                                }
+                                sb.append("\n");
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        res.write(sb.toString());
+                    });
+                    filter(POST, "/guarded", (req, res, ctx) -> {
+                        try {
+                            Tiny.MultipartPart part = req.getMultipart().next();
+                            uploaded = part.getFile();
+                            res.write(part.getFilename() + " not allowed", 403);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return STOP;
+                    });
+                    endPoint(POST, "/guarded", (req, res, ctx) -> {
+                        res.write("Unreachable");
+                    });
+                }}.start();
+            });
+            it("Then small fields should stay in memory and a large file should spill to disk", () -> {
+                MultipartBody body = new MultipartBody.Builder().setType(MultipartBody.FORM)
+                        .addFormDataPart("title", "Holiday")
+                        .addFormDataPart("photo", "beach.jpg", RequestBody.create(new byte[3_000_000], MediaType.get("image/jpeg")))
+                        .addFormDataPart("comment", "Sunny")
+                        .build();
+                try (okhttp3.Response response = new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                        .url("http://localhost:8080/upload").post(body).build()).execute()) {
+                    assertThat(response.body().string(), equalTo("title: Holiday\n" +
+                            "photo: beach.jpg of 3000000 bytes in a temp file\n" +
+                            "comment: Sunny\n"));
+                }
+            });
+            it("Then the temp file should be deleted after the endPoint returns", () -> {
+                try (okhttp3.Response response = httpPost("/upload", "multipart/form-data; boundary=b0undary",
+                        ("--b0undary\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n\r\n" +
+                                "x".repeat(5000) + "\r\n--b0undary--\r\n").getBytes(StandardCharsets.UTF_8))) {
+                    assertThat(response.body().string(), equalTo("file: a.bin of 5000 bytes in a temp file\n"));
+                }
+                for (int i = 0; i < 50 && Files.exists(uploaded); i++) {
+                    Thread.sleep(10);
+                }
+                assertThat(Files.exists(uploaded), equalTo(false));
+            });
+            it("Then the temp file should be deleted when a filter has read it and stopped the chain", () -> {
+                try (okhttp3.Response response = httpPost("/guarded", "multipart/form-data; boundary=b0undary",
+                        ("--b0undary\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n\r\n" +
+                                "x".repeat(5000) + "\r\n--b0undary--\r\n").getBytes(StandardCharsets.UTF_8))) {
+                    assertThat(response.body().string(), equalTo("a.bin not allowed"));
+                }
+                for (int i = 0; i < 50 && Files.exists(uploaded); i++) {
+                    Thread.sleep(10);
+                }
+                assertThat(Files.exists(uploaded), equalTo(false));
+            });
+            it("Then a body that isn't multipart should be a 500 for the endPoint", () -> {
+                try (okhttp3.Response response = httpPost("/upload", "text/plain", "x".getBytes(StandardCharsets.UTF_8))) {
+                    assertThat(response.code(), equalTo(500));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+    }
+
+    private static okhttp3.Response httpPost(String url, String contentType, byte[] body) throws IOException {
+        return new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                .url("http://localhost:8080" + url)
+                .post(RequestBody.create(body, MediaType.get(contentType))).build()).execute();
+    }
+
+    private static okhttp3.Response httpPostEncoded(String url, String contentEncoding, byte[] body) throws IOException {
+        return new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                .url("http://localhost:8080" + url)
+                .header("Content-Encoding", contentEncoding)
+                .post(RequestBody.create(body, MediaType.get("application/json"))).build()).execute();
+    }
+
+    // how much of a body the server would take before closing the connection on it
+    private static long bytesSent(String url, long contentLength) throws IOException {
+        try (Socket socket = new Socket("localhost", 8080)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST " + url + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + contentLength + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            byte[] chunk = new byte[65536];
+            long sent = 0;
+            try {
+                while (sent < contentLength) {
+                    int n = (int) Math.min(chunk.length, contentLength - sent);
+                    out.write(chunk, 0, n);
+                    sent += n;
+                }
+            } catch (IOException e) {
+                // the server closed the connection
+            }
+            return sent;
+        }
+    }
+
+    private static boolean isClosed(InputStream in) {
+        try {
+            in.read();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // deflate without the zlib wrapper, as some clients send it
+    private static byte[] rawDeflate(byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            out.write(content);
+        } finally {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    // no Content-Length, so the body goes chunked
+    private static okhttp3.Response httpPostChunked(String url, byte[] body) throws IOException {
+        return new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                .url("http://localhost:8080" + url)
+                .post(new RequestBody() {
+                    @Override
+                    public MediaType contentType() {
+                        return MediaType.get("application/octet-stream");
+                    }
+
+                    @Override
+                    public void writeTo(BufferedSink sink) throws IOException {
+                        sink.write(body);
+                    }
+                }).build()).execute();
+    }
+}
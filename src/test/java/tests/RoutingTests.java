@@ -0,0 +1,433 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) Paul Hammant, 2024
+ */
+
+package tests;
+
+import com.paulhammant.tiny.Tiny;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import org.forgerock.cuppa.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+
+import static com.paulhammant.tiny.Tiny.FilterAction.CONTINUE;
+import static com.paulhammant.tiny.Tiny.FilterAction.STOP;
+import static com.paulhammant.tiny.Tiny.HttpMethods.DELETE;
+import static com.paulhammant.tiny.Tiny.HttpMethods.GET;
+import static com.paulhammant.tiny.Tiny.HttpMethods.POST;
+import static org.forgerock.cuppa.Cuppa.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static tests.Suite.bodyAndResponseCodeShouldBe;
+import static tests.Suite.httpGet;
+
+@Test
+public class RoutingTests {
+    Tiny.WebServer webServer;
+    final List<String> filtersRun = new CopyOnWriteArrayList<>();
+
+    {
+        describe("Given a Tiny web server with literal, capture and regex endPoints", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    path("/users", () -> {
+                        endPoint(GET, "/(\\w+)", (req, res, ctx) -> {
+                            res.write("User: " + ctx.getParam("1"));
+                        });
+                        endPoint(GET, "/me", (req, res, ctx) -> {
+                            res.write("Me");
+                        });
+                        endPoint(GET, "/(\\d+)", (req, res, ctx) -> {
+                            res.write("User number: " + ctx.getParam("1"));
+                        });
+                    });
+                    endPoint(GET, "/files/(.*)", (req, res, ctx) -> {
+                        res.write("File: " + ctx.getParam("1"));
+                    });
+                    endPoint(GET, "/report-(\\d{4})\\.csv", (req, res, ctx) -> {
+                        res.write("Report: " + ctx.getParam("1"));
+                    });
+                }}.start();
+            });
+            it("Then a literal segment should win over a capture segment", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/users/me"), "Me", 200);
+            });
+            it("Then a digits capture should win over a word capture", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/users/123"), "User number: 123", 200);
+                bodyAndResponseCodeShouldBe(httpGet("/users/fred"), "User: fred", 200);
+            });
+            it("Then a trailing (.*) should capture the rest of the path", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/files/a/b/c.txt"), "File: a/b/c.txt", 200);
+            });
+            it("Then other regex endPoints should still match", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/report-2024.csv"), "Report: 2024", 200);
+                bodyAndResponseCodeShouldBe(httpGet("/report-24.csv"), "Not found", 404);
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a Tiny web server with named path parameters", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    path("/shops/{shop}", () -> {
+                        endPoint(GET, "/orders/{id:long}/items/{sku}", (req, res, ctx) -> {
+                            res.write("Shop: " + ctx.getParam("shop") + ", order: " + (ctx.getLongParam("id") + 1)
+                                    + ", sku: " + ctx.getParam("sku") + ", sku by number: " + ctx.getParam("3"));
+                        });
+                    });
+                }}.start();
+            });
+            it("Then they should be available by name and number, and typed", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/shops/acme/orders/41/items/X-9"),
+                        "Shop: acme, order: 42, sku: X-9, sku by number: X-9", 200);
+            });
+            it("Then a non-numeric value for a long parameter should not match", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/shops/acme/orders/abc/items/X-9"), "Not found", 404);
+            });
+            it("Then a negative value for a long parameter should not match", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/shops/acme/orders/-41/items/X-9"), "Not found", 404);
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("When a path parameter's name isn't a letter then letters and digits", () -> {
+            it("Then registering it should fail, naming the path", () -> {
+                for (String path : new String[] {"/orders/{order_id}", "/orders/{1st}"}) {
+                    try {
+                        new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                            endPoint(GET, path, (req, res, ctx) -> {
+                                res.write("Order");
+                            });
+                        }};
+                        throw new AssertionError("should have barfed");
+                    } catch (IllegalArgumentException e) {
+                        String name = path.substring(path.indexOf('{') + 1, path.length() - 1);
+                        assertThat(e.getMessage(), equalTo("Path parameter name '" + name + "' in " + path + " should be a letter then letters and digits"));
+                    }
+                }
+            });
+        });
+        describe("Given a Tiny web server with GET and DELETE endPoints for a path", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    endPoint(GET, "/items/{id}", (req, res, ctx) -> {
+                        res.write("Item: " + ctx.getParam("id"));
+                    });
+                    endPoint(DELETE, "/items/{id}", (req, res, ctx) -> {
+                        res.write("Deleted");
+                    });
+                }}.start();
+            });
+            it("Then a PUT should be a 405 with an Allow header", () -> {
+                try (okhttp3.Response response = httpCall("PUT", "/items/1")) {
+                    assertThat(response.code(), equalTo(405));
+                    assertThat(response.header("Allow"), equalTo("GET, DELETE, HEAD, OPTIONS"));
+                }
+            });
+            it("Then an OPTIONS should be answered automatically", () -> {
+                try (okhttp3.Response response = httpCall("OPTIONS", "/items/1")) {
+                    assertThat(response.code(), equalTo(204));
+                    assertThat(response.header("Allow"), equalTo("GET, DELETE, HEAD, OPTIONS"));
+                }
+            });
+            it("Then a HEAD should be served by the GET endPoint without a body", () -> {
+                try (okhttp3.Response response = httpCall("HEAD", "/items/1")) {
+                    assertThat(response.code(), equalTo(200));
+                    assertThat(response.header("Content-Length"), equalTo("8"));
+                    assertThat(response.body().string(), equalTo(""));
+                }
+            });
+            it("Then an unknown path should still be a 404", () -> {
+                try (okhttp3.Response response = httpCall("PUT", "/nothing")) {
+                    assertThat(response.code(), equalTo(404));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a Tiny web server with endPoints registered in bulk", () -> {
+            before(() -> {
+                Map<String, Tiny.EndPoint> generated = new LinkedHashMap<>();
+                for (int i = 0; i < 1000; i++) {
+                    int n = i;
+                    generated.put("/generated/r" + i + "/{id:int}", (req, res, ctx) -> {
+                        res.write("Route " + n + " for " + ctx.getParam("id"));
+                    });
+                }
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    endPoints(GET, generated);
+                }}.start();
+            });
+            it("Then each of them should be routed to", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/generated/r0/1"), "Route 0 for 1", 200);
+                bodyAndResponseCodeShouldBe(httpGet("/generated/r999/2"), "Route 999 for 2", 200);
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("When endPoints registered in bulk include a duplicate", () -> {
+            it("Then none of them should be registered", () -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    endPoint(GET, "/taken", (req, res, ctx) -> {
+                        res.write("Taken");
+                    });
+                    Map<String, Tiny.EndPoint> generated = new LinkedHashMap<>();
+                    generated.put("/free", (req, res, ctx) -> {
+                        res.write("Free");
+                    });
+                    generated.put("/taken", (req, res, ctx) -> {
+                        res.write("Taken again");
+                    });
+                    try {
+                        endPoints(GET, generated);
+                        throw new AssertionError("should have barfed");
+                    } catch (IllegalStateException e) {
+                        assertThat(e.getMessage(), equalTo("Endpoint already registered for /taken"));
+                    }
+                }}.start();
+                try {
+                    bodyAndResponseCodeShouldBe(httpGet("/free"), "Not found", 404);
+                    bodyAndResponseCodeShouldBe(httpGet("/taken"), "Taken", 200);
+                } finally {
+                    webServer.stop();
+                    webServer = null;
+                }
+            });
+        });
+        describe("Given a Tiny web server with method-specific and all-method filters interleaved", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    filter(GET, "/merged", (req, res, ctx) -> ran("get1"));
+                    filter("/merged", (req, res, ctx) -> ran("all1"));
+                    filter(POST, "/merged", (req, res, ctx) -> ran("post"));
+                    filter(GET, "/merg.*", (req, res, ctx) -> ran("get2"));
+                    filter("/mer.*", (req, res, ctx) -> ran("all2"));
+                    endPoint(GET, "/merged", (req, res, ctx) -> {
+                        res.write(String.join(",", filtersRun));
+                    });
+                    endPoint(POST, "/merged", (req, res, ctx) -> {
+                        res.write(String.join(",", filtersRun));
+                    });
+                }}.start();
+            });
+            beforeEach(filtersRun::clear);
+            it("Then a GET should run its own and the all-method filters, in the order they were defined", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/merged"), "get1,all1,get2,all2", 200);
+            });
+            it("Then a POST should run only its own and the all-method filters", () -> {
+                try (okhttp3.Response response = httpCall("POST", "/merged")) {
+                    assertThat(response.body().string(), equalTo("all1,post,all2"));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a Tiny web server with overlapping literal, tail and regex filters", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    filter(GET, "/shop/.*", (req, res, ctx) -> ran("any"));
+                    filter(GET, "/shop/(\\w+)/items", (req, res, ctx) -> ran("word:" + ctx.getParam("1")));
+                    filter("/shop/apples/items", (req, res, ctx) -> ran("exact"));
+                    filter(GET, "/sh[o]p/.*", (req, res, ctx) -> ran("regex"));
+                    filter(GET, "/shop/a(.*)", (req, res, ctx) -> ran("tail:" + ctx.getParam("1")));
+                    filter(GET, "/shop/b.*", (req, res, ctx) -> ran("b"));
+                    filter(GET, "/shop", (req, res, ctx) -> ran("shop"));
+                    filter(GET, "/shop/(\\d+)/items", (req, res, ctx) -> ran("digits:" + ctx.getParam("1")));
+                    endPoint(GET, "/shop/(\\w+)/items", (req, res, ctx) -> {
+                        res.write(String.join(",", filtersRun));
+                    });
+                }}.start();
+            });
+            beforeEach(filtersRun::clear);
+            it("Then every matching filter should run, in the order they were defined, with its own captures", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/shop/apples/items"), "any,word:apples,exact,regex,tail:pples/items", 200);
+            });
+            it("Then filters whose prefix matches but whose pattern doesn't should be skipped", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/shop/42/items"), "any,word:42,regex,digits:42", 200);
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a Tiny web server with a route cache of two entries", () -> {
+            beforeEach(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080).withRouteCacheSize(2)) {{
+                    filter(GET, "/users/(\\d+)", (req, res, ctx) -> {
+                        res.setHeader("X-Filtered", ctx.getParam("1"));
+                        return CONTINUE;
+                    });
+                    endPoint(GET, "/users/(\\d+)", (req, res, ctx) -> {
+                        res.write("User number: " + ctx.getParam("1"));
+                    });
+                }}.start();
+            });
+            it("Then a repeated path should be a cache hit, and routed the same", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/users/1"), "User number: 1", 200);
+                try (okhttp3.Response response = httpCall("GET", "/users/1")) {
+                    assertThat(response.body().string(), equalTo("User number: 1"));
+                    assertThat(response.header("X-Filtered"), equalTo("1"));
+                }
+                assertThat(webServer.getRouteCacheHits(), equalTo(1L));
+                assertThat(webServer.getRouteCacheMisses(), equalTo(1L));
+            });
+            it("Then paths past its size should evict the least recently used, and still be routed correctly", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/users/1"), "User number: 1", 200); // miss
+                bodyAndResponseCodeShouldBe(httpGet("/users/2"), "User number: 2", 200); // miss
+                bodyAndResponseCodeShouldBe(httpGet("/users/1"), "User number: 1", 200); // hit
+                bodyAndResponseCodeShouldBe(httpGet("/users/3"), "User number: 3", 200); // miss, evicts 2
+                bodyAndResponseCodeShouldBe(httpGet("/users/2"), "User number: 2", 200); // miss, evicts 1
+                bodyAndResponseCodeShouldBe(httpGet("/users/3"), "User number: 3", 200); // hit
+                assertThat(webServer.getRouteCacheHits(), equalTo(2L));
+                assertThat(webServer.getRouteCacheMisses(), equalTo(4L));
+            });
+            afterEach(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a BoundedCache filled past its size", () -> {
+            it("Then it should hold no more than its size, keeping the most recently used", () -> {
+                Tiny.BoundedCache<String, Integer> cache = new Tiny.BoundedCache<>(1000);
+                for (int i = 0; i < 5000; i++) {
+                    cache.put("k" + i, i);
+                    assertThat(cache.get("k0"), equalTo(0)); // keeps k0 the most recently used
+                }
+                assertThat(cache.size() <= 1000, equalTo(true));
+                assertThat(cache.get("k0"), equalTo(0));
+                assertThat(cache.get("k4999"), equalTo(4999));
+                assertThat(cache.get("k1"), equalTo(null));
+            });
+        });
+        describe("Given a Tiny web server in linear-time matching mode", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080).withLinearTimeMatching(true)) {{
+                    filter(GET, "/(aa)+c", (req, res, ctx) -> {
+                        res.write("Filtered", 403);
+                        return STOP;
+                    });
+                    endPoint(GET, "/report-(\\d{4})\\.(csv|txt)", (req, res, ctx) -> {
+                        res.write("Report: " + ctx.getParam("1") + " as " + ctx.getParam("2"));
+                    });
+                    endPoint(GET, "/(a+)+c", (req, res, ctx) -> {
+                        res.write("Many a");
+                    });
+                }}.start();
+            });
+            it("Then regex endPoints and filters should match as before", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/report-2024.txt"), "Report: 2024 as txt", 200);
+                bodyAndResponseCodeShouldBe(httpGet("/aaac"), "Many a", 200);
+                bodyAndResponseCodeShouldBe(httpGet("/aaaac"), "Filtered", 403);
+            });
+            it("Then a path that would make a backtracking matcher take exponential time should be quick to 404", () -> {
+                long start = System.currentTimeMillis();
+                bodyAndResponseCodeShouldBe(httpGet("/" + "a".repeat(5000) + "!"), "Not found", 404);
+                assertThat(System.currentTimeMillis() - start < 2000, equalTo(true));
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given an endPoint in linear-time matching mode that asks for a dependency", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080).withLinearTimeMatching(true), new Tiny.DependencyManager(new Tiny.DefaultComponentCache()) {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public <T> T instantiateDep(Class<T> clazz, Tiny.ComponentCache requestCache, Matcher matcher) {
+                        return (T) (matcher == null ? "No matcher" : "Matcher");
+                    }
+                }) {{
+                    // java.util.regex only gets to the second alternative after exponential backtracking in the first
+                    endPoint(GET, "/(((a+)+)+b|.*)", (req, res, ctx) -> {
+                        res.write(ctx.dep(String.class) + " for " + ctx.getParam("1").length() + " chars");
+                    });
+                }}.start();
+            });
+            it("Then a path that would make a backtracking matcher take exponential time should still be quick", () -> {
+                long start = System.currentTimeMillis();
+                bodyAndResponseCodeShouldBe(httpGet("/" + "a".repeat(5000) + "!"), "No matcher for 5001 chars", 200);
+                assertThat(System.currentTimeMillis() - start < 2000, equalTo(true));
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("When a server in linear-time matching mode has a pattern that needs backtracking", () -> {
+            it("Then it should refuse to start", () -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080).withLinearTimeMatching(true)) {{
+                    endPoint(GET, "/(\\w+)/\\1", (req, res, ctx) -> {
+                        res.write("Twice");
+                    });
+                }};
+                try {
+                    webServer.start();
+                    throw new AssertionError("should have barfed");
+                } catch (IllegalStateException e) {
+                    assertThat(e.getMessage(), equalTo("endPoint pattern ^/(\\w+)/\\1$ can't be matched in linear time: escape \\1 at index 9"));
+                }
+                webServer = null;
+            });
+        });
+        describe("When a server has two endPoints for a method whose patterns match the same paths", () -> {
+            it("Then it should refuse to start, naming both", () -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    endPoint(GET, "/orders/(\\d+)", (req, res, ctx) -> {
+                        res.write("Order");
+                    });
+                    endPoint(GET, "/orders/([0-9]+)", (req, res, ctx) -> {
+                        res.write("Same order");
+                    });
+                }};
+                try {
+                    webServer.start();
+                    throw new AssertionError("should have barfed");
+                } catch (IllegalStateException e) {
+                    assertThat(e.getMessage(), equalTo("endPoint patterns ^/orders/(\\d+)$ and ^/orders/([0-9]+)$ for GET match the same paths"));
+                }
+                webServer = null;
+            });
+        });
+    }
+
+    private Tiny.FilterAction ran(String filter) {
+        filtersRun.add(filter);
+        return CONTINUE;
+    }
+
+    private static okhttp3.Response httpCall(String method, String url) throws IOException {
+        RequestBody body = method.equals("PUT") || method.equals("POST") ? RequestBody.create(new byte[0]) : null;
+        return new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                .url("http://localhost:8080" + url)
+                .method(method, body).build()).execute();
+    }
+}
@@ -19,18 +19,30 @@ package tests;
 import com.paulhammant.tiny.Tiny;
 import org.forgerock.cuppa.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
+import static com.paulhammant.tiny.Tiny.HttpMethods.GET;
 import static org.forgerock.cuppa.Cuppa.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
 import static tests.Suite.bodyAndResponseCodeShouldBe;
 import static tests.Suite.httpGet;
 
 @Test
 public class StaticFilesTests {
     Tiny.WebServer webServer;
+    Path directory;
+    Tiny.StaticFiles staticFiles;
 
     {
         describe("When serving static files", () -> {
@@ -66,10 +78,253 @@ public class StaticFilesTests {
                     assertThat(response.body().string(), containsString("(Lcom/sun/net/httpserver/HttpExchange;ILjava/lang/String;)V"));
                 }
             });
+            it("Then it should send a binary file byte for byte, with its Content-Length", () -> {
+                byte[] file = Files.readAllBytes(Path.of("target/classes/com/paulhammant/tiny/Tiny$WebServer.class"));
+                try (okhttp3.Response response = httpGet("/static/target/classes/com/paulhammant/tiny/Tiny$WebServer.class")) {
+                    assertThat(response.code(), equalTo(200));
+                    assertThat(response.header("Content-Length"), equalTo(String.valueOf(file.length)));
+                    assertThat(response.body().bytes(), equalTo(file));
+                }
+            });
+            it("Then it should return 206 and just the bytes asked for in a Range", () -> {
+                byte[] file = Files.readAllBytes(Path.of("BUILDING.md"));
+                try (okhttp3.Response response = httpGet("/static/BUILDING.md", "Range", "bytes=5-14")) {
+                    assertThat(response.code(), equalTo(206));
+                    assertThat(response.header("Content-Range"), equalTo("bytes 5-14/" + file.length));
+                    assertThat(response.body().bytes(), equalTo(Arrays.copyOfRange(file, 5, 15)));
+                }
+            });
+            it("Then it should return several ranges as multipart/byteranges", () -> {
+                long length = Files.size(Path.of("BUILDING.md"));
+                try (okhttp3.Response response = httpGet("/static/BUILDING.md", "Range", "bytes=0-1,-2")) {
+                    assertThat(response.code(), equalTo(206));
+                    assertThat(response.header("Content-Type"), startsWith("multipart/byteranges; boundary="));
+                    String body = response.body().string();
+                    assertThat(body, containsString("Content-Range: bytes 0-1/" + length));
+                    assertThat(body, containsString("Content-Range: bytes " + (length - 2) + "-" + (length - 1) + "/" + length));
+                }
+            });
+            it("Then it should return 416 for a Range that's past the end of the file", () -> {
+                long length = Files.size(Path.of("BUILDING.md"));
+                try (okhttp3.Response response = httpGet("/static/BUILDING.md", "Range", "bytes=" + length + "-")) {
+                    assertThat(response.code(), equalTo(416));
+                    assertThat(response.header("Content-Range"), equalTo("bytes */" + length));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("When serving static files memory-mapped", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)
+                        .withStaticFileMapping(1)) {{
+                    serveStaticFilesAsync("/static", new File(".").getAbsolutePath());
+                }};
+                webServer.start();
+            });
+            it("Then it should send the whole file, or the Range asked for", () -> {
+                byte[] file = Files.readAllBytes(Path.of("target/classes/com/paulhammant/tiny/Tiny$WebServer.class"));
+                try (okhttp3.Response response = httpGet("/static/target/classes/com/paulhammant/tiny/Tiny$WebServer.class")) {
+                    assertThat(response.code(), equalTo(200));
+                    assertThat(response.header("Content-Length"), equalTo(String.valueOf(file.length)));
+                    assertThat(response.body().bytes(), equalTo(file));
+                }
+                try (okhttp3.Response response = httpGet("/static/target/classes/com/paulhammant/tiny/Tiny$WebServer.class", "Range", "bytes=-100")) {
+                    assertThat(response.code(), equalTo(206));
+                    assertThat(response.body().bytes(), equalTo(Arrays.copyOfRange(file, file.length - 100, file.length)));
+                }
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("When serving static files from a RAM cache", () -> {
+            before(() -> {
+                directory = Files.createTempDirectory("tiny-static");
+                Files.writeString(directory.resolve("page.html"), "first");
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)
+                        .withStaticFileCache(1024 * 1024).withMimeType("html", "text/html; charset=utf-8")) {{
+                    serveStaticFilesAsync("/static", directory.toString());
+                }};
+                webServer.start();
+            });
+            it("Then it should use Config's Content-Type for an extension over the built-in one", () -> {
+                try (okhttp3.Response response = httpGet("/static/page.html")) {
+                    assertThat(response.header("Content-Type"), equalTo("text/html; charset=utf-8"));
+                }
+            });
+            it("Then it should serve the new content once a cached file changes", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/static/page.html"), "first", 200);
+                bodyAndResponseCodeShouldBe(httpGet("/static/page.html"), "first", 200);
+                Files.writeString(directory.resolve("page.html"), "second");
+                String body = "first";
+                for (int i = 0; i < 50 && body.equals("first"); i++) {
+                    Thread.sleep(100);
+                    try (okhttp3.Response response = httpGet("/static/page.html")) {
+                        body = response.body().string();
+                    }
+                }
+                assertThat(body, equalTo("second"));
+            });
+            it("Then it should return 304 for an ETag the client already has", () -> {
+                String etag;
+                try (okhttp3.Response response = httpGet("/static/page.html")) {
+                    etag = response.header("ETag");
+                }
+                try (okhttp3.Response response = httpGet("/static/page.html", "If-None-Match", etag)) {
+                    assertThat(response.code(), equalTo(304));
+                }
+            });
+            it("Then it should send a file's .gz sibling to a client that takes gzip", () -> {
+                Files.writeString(directory.resolve("app.js"), "let x = 1;");
+                byte[] gzipped = RequestBodyTests.gzip("let x = 1;".getBytes());
+                Files.write(directory.resolve("app.js.gz"), gzipped);
+                try (okhttp3.Response response = httpGet("/static/app.js", "Accept-Encoding", "gzip")) {
+                    assertThat(response.code(), equalTo(200));
+                    assertThat(response.header("Content-Encoding"), equalTo("gzip"));
+                    assertThat(response.header("Vary"), equalTo("Accept-Encoding"));
+                    assertThat(response.body().bytes(), equalTo(gzipped));
+                }
+                try (okhttp3.Response response = httpGet("/static/app.js", "Accept-Encoding", "identity")) {
+                    assertThat(response.header("Content-Encoding"), equalTo(null));
+                    assertThat(response.body().string(), equalTo("let x = 1;"));
+                }
+            });
+            it("Then it should return 404 for paths outside of the directory", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/static/..%2F..%2Fetc%2Fpasswd"), "Not found", 404);
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+                deleteTree(directory);
+            });
+        });
+        describe("When serving static files with what's known of them kept for a second", () -> {
+            before(() -> {
+                directory = Files.createTempDirectory("tiny-static");
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)
+                        .withStaticMetadataTtl(1000)) {{
+                    serveStaticFilesAsync("/static", directory.toString());
+                }};
+                webServer.start();
+            });
+            it("Then a file's new size should show in its ETag once that second is up", () -> {
+                Files.writeString(directory.resolve("notes.txt"), "first");
+                String etag;
+                try (okhttp3.Response response = httpGet("/static/notes.txt")) {
+                    etag = response.header("ETag");
+                }
+                Files.writeString(directory.resolve("notes.txt"), "second version");
+                try (okhttp3.Response response = httpGet("/static/notes.txt")) {
+                    assertThat(response.header("ETag"), equalTo(etag));
+                }
+                Thread.sleep(1100);
+                try (okhttp3.Response response = httpGet("/static/notes.txt")) {
+                    assertThat(response.header("ETag").equals(etag), equalTo(false));
+                    assertThat(response.body().string(), equalTo("second version"));
+                }
+            });
             after(() -> {
                 webServer.stop();
                 webServer = null;
+                deleteTree(directory);
             });
         });
+        describe("When serving static files from a RAM cache with a 1000 byte budget", () -> {
+            before(() -> {
+                directory = Files.createTempDirectory("tiny-static");
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)
+                        .withStaticFileCache(1000).withStaticMetadataTtl(60_000)) {{
+                    staticFiles = new Tiny.StaticFiles(directory, serverState);
+                    endPoint(GET, "/static/(.*)", (req, res, ctx) -> staticFiles.serve(res, ctx.getParam("1")));
+                }};
+                webServer.start();
+            });
+            it("Then going over budget should evict the entry asked for least for the room it takes", () -> {
+                Files.writeString(directory.resolve("a.txt"), "a".repeat(230));
+                Files.writeString(directory.resolve("b.txt"), "b".repeat(250));
+                Files.writeString(directory.resolve("c.txt"), "c".repeat(200));
+                Files.writeString(directory.resolve("s.txt"), "s".repeat(100));
+                Files.writeString(directory.resolve("d.txt"), "d".repeat(240));
+                for (int i = 0; i < 3; i++) {
+                    bodyAndResponseCodeShouldBe(httpGet("/static/a.txt"), "a".repeat(230), 200);
+                }
+                bodyAndResponseCodeShouldBe(httpGet("/static/b.txt"), "b".repeat(250), 200);
+                bodyAndResponseCodeShouldBe(httpGet("/static/c.txt"), "c".repeat(200), 200);
+                bodyAndResponseCodeShouldBe(httpGet("/static/s.txt"), "s".repeat(100), 200);
+                assertThat(staticFiles.getCachedBytes(), equalTo(780L));
+                // 1020 bytes with d.txt, so b.txt - the biggest of those asked for once - goes
+                bodyAndResponseCodeShouldBe(httpGet("/static/d.txt"), "d".repeat(240), 200);
+                assertThat(staticFiles.getCachedBytes(), equalTo(780L - 250 + 240));
+                bodyAndResponseCodeShouldBe(httpGet("/static/b.txt"), "b".repeat(250), 200);
+            });
+            it("Then a 404 should be remembered only until the file is created", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/static/later.txt"), "Not found", 404);
+                Files.writeString(directory.resolve("later.txt"), "here now");
+                // well inside the minute the 404 would otherwise be remembered for
+                int code = 404;
+                for (int i = 0; i < 50 && code == 404; i++) {
+                    Thread.sleep(100);
+                    try (okhttp3.Response response = httpGet("/static/later.txt")) {
+                        code = response.code();
+                    }
+                }
+                assertThat(code, equalTo(200));
+                bodyAndResponseCodeShouldBe(httpGet("/static/later.txt"), "here now", 200);
+            });
+            after(() -> {
+                webServer.stop();
+                staticFiles.close();
+                webServer = null;
+                deleteTree(directory);
+            });
+        });
+        describe("When serving static files with response compression on", () -> {
+            before(() -> {
+                directory = Files.createTempDirectory("tiny-static");
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)
+                        .withResponseCompression(true)) {{
+                    staticFiles = new Tiny.StaticFiles(directory, serverState);
+                    endPoint(GET, "/static/(.*)", (req, res, ctx) -> staticFiles.serve(res, ctx.getParam("1")));
+                }};
+                webServer.start();
+            });
+            it("Then a file without a .gz sibling should be gzipped once, and that kept for the next client", () -> {
+                String css = "body { color: red; }\n".repeat(300);
+                Files.writeString(directory.resolve("site.css"), css);
+                byte[] first;
+                try (okhttp3.Response response = httpGet("/static/site.css", "Accept-Encoding", "gzip")) {
+                    assertThat(response.header("Content-Encoding"), equalTo("gzip"));
+                    assertThat(response.header("Vary"), equalTo("Accept-Encoding"));
+                    first = response.body().bytes();
+                }
+                assertThat(new String(new GZIPInputStream(new ByteArrayInputStream(first)).readAllBytes()), equalTo(css));
+                assertThat(staticFiles.getGzippedBytes(), equalTo((long) first.length));
+                assertThat(staticFiles.getCacheHits(), equalTo(0L));
+                try (okhttp3.Response response = httpGet("/static/site.css", "Accept-Encoding", "gzip")) {
+                    assertThat(response.header("Content-Encoding"), equalTo("gzip"));
+                    assertThat(response.body().bytes(), equalTo(first));
+                }
+                assertThat(staticFiles.getCacheHits(), equalTo(1L));
+                assertThat(staticFiles.getGzippedBytes(), equalTo((long) first.length));
+            });
+            after(() -> {
+                webServer.stop();
+                staticFiles.close();
+                webServer = null;
+                deleteTree(directory);
+            });
+        });
+    }
+
+    private static void deleteTree(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
     }
 }
@@ -52,12 +52,16 @@ public class Suite {
                 ChunkedTests.class,
                 DependenciesTests.class,
                 FilterTests.class,
+                JsonTests.class,
                 SeleniumTests.class,
                 PathRegistrationTests.class,
+                RequestBodyTests.class,
                 RequestStatsTests.class,
+                RoutingTests.class,
                 SecurityManagerCompositionTests.class,
                 ServerSideEventsTests.class,
                 StaticFilesTests.class,
+                VirtualHostTests.class,
                 WebServerTests.class,
                 WebSocketTests.class,
                 WithMockitoTests.class
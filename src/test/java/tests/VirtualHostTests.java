@@ -0,0 +1,83 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) Paul Hammant, 2024
+ */
+
+package tests;
+
+import com.paulhammant.tiny.Tiny;
+import org.forgerock.cuppa.Test;
+
+import static com.paulhammant.tiny.Tiny.HttpMethods.GET;
+import static org.forgerock.cuppa.Cuppa.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static tests.Suite.bodyAndResponseCodeShouldBe;
+import static tests.Suite.httpGet;
+
+@Test
+public class VirtualHostTests {
+    Tiny.WebServer webServer;
+
+    {
+        describe("Given a Tiny web server with two virtual hosts", () -> {
+            before(() -> {
+                webServer = new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                    endPoint(GET, "/orders", (req, res, ctx) -> {
+                        res.write("Default orders");
+                    });
+                    host("acme.example.com", () -> {
+                        endPoint(GET, "/orders", (req, res, ctx) -> {
+                            res.write("Acme orders");
+                        });
+                    });
+                    host("globex.example.com", () -> {
+                        path("/shop", () -> {
+                            endPoint(GET, "/orders", (req, res, ctx) -> {
+                                res.write("Globex orders");
+                            });
+                        });
+                    });
+                }}.start();
+            });
+            it("Then each host should be routed to its own endPoints", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/orders", "Host", "acme.example.com:8080"), "Acme orders", 200);
+                bodyAndResponseCodeShouldBe(httpGet("/shop/orders", "Host", "globex.example.com"), "Globex orders", 200);
+            });
+            it("Then a host should not see another host's endPoints", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/shop/orders", "Host", "acme.example.com"), "Not found", 404);
+            });
+            it("Then an unregistered host should get the default endPoints", () -> {
+                bodyAndResponseCodeShouldBe(httpGet("/orders"), "Default orders", 200);
+            });
+            after(() -> {
+                webServer.stop();
+                webServer = null;
+            });
+        });
+        describe("Given a Tiny web server with a virtual host", () -> {
+            it("Then the same host can't be registered again", () -> {
+                try {
+                    new Tiny.WebServer(Tiny.Config.create().withHostAndWebPort("localhost", 8080)) {{
+                        host("acme.example.com", () -> {});
+                        host("ACME.example.com", () -> {});
+                    }};
+                    throw new AssertionError("should have throw IllegalStateException");
+                } catch (IllegalStateException e) {
+                    assertThat(e.getMessage(), equalTo("Host already registered: ACME.example.com"));
+                }
+            });
+        });
+    }
+}
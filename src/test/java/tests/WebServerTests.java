@@ -1,10 +1,21 @@
 package tests;
 
 import com.sun.net.httpserver.HttpExchange;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
 import org.forgerock.cuppa.Test;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
 import com.paulhammant.tiny.Tiny;
 import static com.paulhammant.tiny.Tiny.HttpMethods.GET;
+import static com.paulhammant.tiny.Tiny.HttpMethods.POST;
 import static org.forgerock.cuppa.Cuppa.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
@@ -98,6 +109,9 @@ public class WebServerTests {
                             endPoint(GET, "/query", (req, res, ctx) -> {
                                 res.write("Query Params: " + req.getQueryParams());
                             });
+                            endPoint(GET, "/tags", (req, res, ctx) -> {
+                                res.write("Tags: " + req.getQueryParamValues("tag") + ", q: " + req.getQueryParam("q"));
+                            });
                         });
                     }}.start();
                 });
@@ -107,6 +121,207 @@ public class WebServerTests {
                             "Query Params: {name=John, age=30}", 200);
                 });
 
+                it("Then it should percent-decode them and keep every value of a repeated one", () -> {
+                    bodyAndResponseCodeShouldBe(httpGet("/api/tags?tag=caf%C3%A9&q=a%26b%3Dc&tag=two+words"),
+                            "Tags: [café, two words], q: a&b=c", 200);
+                });
+
+                after(() -> {
+                    webServer.stop();
+                    webServer = null;
+                });
+            });
+
+            describe("When the endpoint writes binary content", () -> {
+                before(() -> {
+                    byte[] png = {(byte) 0x89, 'P', 'N', 'G', 0, (byte) 0xFF, 13, 10};
+                    Path file = Files.createTempFile("tiny-test", ".png");
+                    Files.write(file, png);
+                    webServer = new Tiny.WebServer(Tiny.Config.create().withWebPort(8080)) {{
+                        endPoint(GET, "/bytes", (req, res, ctx) -> {
+                            res.write(png);
+                        });
+                        endPoint(GET, "/ranged-bytes", (req, res, ctx) -> {
+                            res.setRanges(true);
+                            res.write(png);
+                        });
+                        endPoint(GET, "/buffer", (req, res, ctx) -> {
+                            res.write(ByteBuffer.wrap(png, 1, 3), 201);
+                        });
+                        endPoint(GET, "/stream", (req, res, ctx) -> {
+                            res.write(new ByteArrayInputStream(png));
+                        });
+                        endPoint(GET, "/file", (req, res, ctx) -> {
+                            res.write(file);
+                        });
+                        endPoint(POST, "/echo", (req, res, ctx) -> {
+                            res.write(req.getBodyStream());
+                        });
+                    }}.start();
+                });
+
+                it("Then a byte[] should be sent as it is, with its length", () -> {
+                    try (okhttp3.Response response = httpGet("/bytes")) {
+                        assertThat(response.header("Content-Length"), equalTo("8"));
+                        assertThat(response.body().bytes(), equalTo(new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, (byte) 0xFF, 13, 10}));
+                    }
+                });
+
+                it("Then a Range should only be answered from a byte[] when the endPoint says so", () -> {
+                    try (okhttp3.Response response = httpGet("/bytes", "Range", "bytes=1-3")) {
+                        assertThat(response.code(), equalTo(200));
+                        assertThat(response.header("Accept-Ranges"), equalTo(null));
+                        assertThat(response.body().bytes().length, equalTo(8));
+                    }
+                    try (okhttp3.Response response = httpGet("/ranged-bytes", "Range", "bytes=1-3")) {
+                        assertThat(response.code(), equalTo(206));
+                        assertThat(response.header("Accept-Ranges"), equalTo("bytes"));
+                        assertThat(response.header("Content-Range"), equalTo("bytes 1-3/8"));
+                        assertThat(response.body().string(), equalTo("PNG"));
+                    }
+                });
+
+                it("Then a ByteBuffer should be sent from its position to its limit", () -> {
+                    try (okhttp3.Response response = httpGet("/buffer")) {
+                        assertThat(response.code(), equalTo(201));
+                        assertThat(response.body().string(), equalTo("PNG"));
+                    }
+                });
+
+                it("Then an InputStream should be sent chunked", () -> {
+                    try (okhttp3.Response response = httpGet("/stream")) {
+                        assertThat(response.header("Transfer-Encoding"), equalTo("chunked"));
+                        assertThat(response.body().bytes().length, equalTo(8));
+                    }
+                });
+
+                it("Then the request's own body should be sent back as an InputStream", () -> {
+                    try (okhttp3.Response response = new OkHttpClient().newCall(new okhttp3.Request.Builder()
+                            .url("http://localhost:8080/echo")
+                            .post(RequestBody.create("hello world", MediaType.get("text/plain"))).build()).execute()) {
+                        assertThat(response.code(), equalTo(200));
+                        assertThat(response.body().string(), equalTo("hello world"));
+                    }
+                });
+
+                it("Then a file should be sent with its length and content type", () -> {
+                    try (okhttp3.Response response = httpGet("/file")) {
+                        assertThat(response.header("Content-Length"), equalTo("8"));
+                        assertThat(response.header("Content-Type"), equalTo("image/png"));
+                        assertThat(response.body().bytes()[5], equalTo((byte) 0xFF));
+                    }
+                });
+
+                it("Then a Range should always be answered from a file", () -> {
+                    try (okhttp3.Response response = httpGet("/file", "Range", "bytes=1-3")) {
+                        assertThat(response.code(), equalTo(206));
+                        assertThat(response.body().string(), equalTo("PNG"));
+                    }
+                });
+
+                after(() -> {
+                    webServer.stop();
+                    webServer = null;
+                });
+            });
+
+            describe("When response compression is on", () -> {
+                before(() -> {
+                    webServer = new Tiny.WebServer(Tiny.Config.create().withWebPort(8080).withResponseCompression(true)) {{
+                        endPoint(GET, "/report", (req, res, ctx) -> {
+                            res.write("line of the report\n".repeat(500));
+                        });
+                        endPoint(GET, "/ping", new Tiny.UncompressedEndPoint((req, res, ctx) -> {
+                            res.write("pong ".repeat(500));
+                        }));
+                        endPoint(GET, "/tiny", (req, res, ctx) -> {
+                            res.write("ok");
+                        });
+                    }}.start();
+                });
+
+                it("Then a large response should be gzipped for a client that accepts it", () -> {
+                    try (okhttp3.Response response = httpGet("/report", "Accept-Encoding", "gzip")) {
+                        assertThat(response.header("Content-Encoding"), equalTo("gzip"));
+                        assertThat(response.header("Vary"), equalTo("Accept-Encoding"));
+                        byte[] compressed = response.body().bytes();
+                        String report = new String(new GZIPInputStream(new ByteArrayInputStream(compressed)).readAllBytes(), StandardCharsets.UTF_8);
+                        assertThat(report, equalTo("line of the report\n".repeat(500)));
+                        assertThat(compressed.length < 1000, equalTo(true));
+                    }
+                });
+
+                it("Then deflate should be used when the client prefers it", () -> {
+                    try (okhttp3.Response response = httpGet("/report", "Accept-Encoding", "gzip;q=0.5, deflate")) {
+                        assertThat(response.header("Content-Encoding"), equalTo("deflate"));
+                    }
+                });
+
+                it("Then a response below the threshold should not be compressed", () -> {
+                    try (okhttp3.Response response = httpGet("/tiny", "Accept-Encoding", "gzip")) {
+                        assertThat(response.header("Content-Encoding"), equalTo(null));
+                        assertThat(response.body().string(), equalTo("ok"));
+                    }
+                });
+
+                it("Then an UncompressedEndPoint should not be compressed", () -> {
+                    try (okhttp3.Response response = httpGet("/ping", "Accept-Encoding", "gzip")) {
+                        assertThat(response.header("Content-Encoding"), equalTo(null));
+                        assertThat(response.header("Content-Length"), equalTo("2500"));
+                    }
+                });
+
+                after(() -> {
+                    webServer.stop();
+                    webServer = null;
+                });
+            });
+
+            describe("When ETags are on", () -> {
+                int[] reportsBuilt = {0};
+                before(() -> {
+                    webServer = new Tiny.WebServer(Tiny.Config.create().withWebPort(8080).withAutoETags(true)) {{
+                        endPoint(GET, "/status", (req, res, ctx) -> {
+                            res.write("All systems go");
+                        });
+                        endPoint(GET, "/report", (req, res, ctx) -> {
+                            if (res.notModified("report-v7")) {
+                                return;
+                            }
+                            reportsBuilt[0]++;
+                            res.write("The report");
+                        });
+                    }}.start();
+                });
+
+                it("Then a response should get an ETag from its body, and a 304 when the client has it", () -> {
+                    String etag;
+                    try (okhttp3.Response response = httpGet("/status")) {
+                        etag = response.header("ETag");
+                        assertThat(etag.startsWith("\""), equalTo(true));
+                        assertThat(response.body().string(), equalTo("All systems go"));
+                    }
+                    try (okhttp3.Response response = httpGet("/status", "If-None-Match", etag)) {
+                        assertThat(response.code(), equalTo(304));
+                        assertThat(response.header("ETag"), equalTo(etag));
+                        assertThat(response.body().string(), equalTo(""));
+                    }
+                    try (okhttp3.Response response = httpGet("/status", "If-None-Match", "\"something-else\"")) {
+                        assertThat(response.code(), equalTo(200));
+                    }
+                });
+
+                it("Then an ETag declared up front should skip building the body", () -> {
+                    try (okhttp3.Response response = httpGet("/report")) {
+                        assertThat(response.header("ETag"), equalTo("\"report-v7\""));
+                        assertThat(response.body().string(), equalTo("The report"));
+                    }
+                    try (okhttp3.Response response = httpGet("/report", "If-None-Match", "\"report-v7\"")) {
+                        assertThat(response.code(), equalTo(304));
+                    }
+                    assertThat(reportsBuilt[0], equalTo(1));
+                });
+
                 after(() -> {
                     webServer.stop();
                     webServer = null;